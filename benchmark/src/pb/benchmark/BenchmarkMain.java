@@ -0,0 +1,35 @@
+package pb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * 跑全部 benchmark, 先按 ops/s 再按 ns/op 各跑一遍, 都带 GC profiler,
+ * 每次操作分配的字节数看结果里的 {@code gc.alloc.rate.norm}.
+ * <p/>
+ * 参数是要跑的 benchmark 的正则, 默认全部, 如 {@code PBBenchmark.parse}.
+ */
+public final class BenchmarkMain {
+    private BenchmarkMain() {
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "pb\\.benchmark\\..*Benchmark";
+        run(include, Mode.Throughput, TimeUnit.SECONDS);
+        run(include, Mode.AverageTime, TimeUnit.NANOSECONDS);
+    }
+
+    private static void run(String include, Mode mode, TimeUnit unit) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(include)
+                .mode(mode)
+                .timeUnit(unit)
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,10 @@
+package pb.benchmark;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+@ClassDef
+public class CirclePb extends ShapePb {
+    @FieldDef(tag = 2)
+    public double mRadius;
+}
@@ -0,0 +1,35 @@
+package pb.benchmark;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+/**
+ * 只有基本类型字段.
+ */
+@ClassDef
+public class FlatPb {
+    @FieldDef(tag = 1)
+    public int mInt;
+
+    @FieldDef(tag = 2)
+    public long mLong;
+
+    @FieldDef(tag = 3)
+    public double mDouble;
+
+    @FieldDef(tag = 4)
+    public float mFloat;
+
+    @FieldDef(tag = 5)
+    public boolean mBool;
+
+    @FieldDef(tag = 6, type = PBWireFormat.FieldType.SINT32)
+    public int mSInt;
+
+    @FieldDef(tag = 7, type = PBWireFormat.FieldType.FIXED64)
+    public long mFixed;
+
+    @FieldDef(tag = 8, type = PBWireFormat.FieldType.UINT32)
+    public int mUInt;
+}
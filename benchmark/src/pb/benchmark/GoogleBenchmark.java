@@ -0,0 +1,88 @@
+package pb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import pb.PBMessage;
+
+/**
+ * 同 {@link PBBenchmark}, 对比 protobuf-java. 消息由 {@code benchmark/proto/bench.proto} 生成,
+ * 数据是把 {@link PBMessage} 编码的字节用 protobuf-java 解析出来的, 两边完全一样.
+ * <p/>
+ * {@link Payloads#POLYM} 没有对应的 .proto 写法, 不测. protobuf-java 会缓存 getSerializedSize 的结果,
+ * 所以它的 size 只是读一个字段.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GoogleBenchmark {
+    @Param({Payloads.FLAT, Payloads.STRING, Payloads.NESTED, Payloads.REPEATED})
+    public String shape;
+
+    private Parser<? extends MessageLite> mParser;
+    private MessageLite mMessage;
+    private byte[] mBytes;
+    private byte[] mBuffer;
+
+    @Setup
+    public void setup() throws Exception {
+        mBytes = new PBMessage<Object>(Payloads.create(shape)).toByteArray();
+        mParser = prototype(shape).getParserForType();
+        mMessage = mParser.parseFrom(mBytes);
+        mBuffer = new byte[mBytes.length];
+    }
+
+    private static MessageLite prototype(String shape) {
+        if (Payloads.FLAT.equals(shape)) {
+            return BenchProto.Flat.getDefaultInstance();
+        } else if (Payloads.STRING.equals(shape)) {
+            return BenchProto.Strings.getDefaultInstance();
+        } else if (Payloads.NESTED.equals(shape)) {
+            return BenchProto.Node.getDefaultInstance();
+        } else if (Payloads.REPEATED.equals(shape)) {
+            return BenchProto.Repeated.getDefaultInstance();
+        }
+        throw new IllegalArgumentException("unknown shape: " + shape);
+    }
+
+    @Benchmark
+    public int size() {
+        return mMessage.getSerializedSize();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        CodedOutputStream output = CodedOutputStream.newInstance(mBuffer);
+        mMessage.writeTo(output);
+        return mBuffer;
+    }
+
+    @Benchmark
+    public ByteString toByteString() {
+        return mMessage.toByteString();
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        return mParser.parseFrom(mBytes);
+    }
+}
@@ -0,0 +1,16 @@
+package pb.benchmark;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+/**
+ * 和 test.SelfComposePb 同样的结构, 用来测很深的嵌套.
+ */
+@ClassDef
+public class NodePb {
+    @FieldDef(tag = 1)
+    public int mInt;
+
+    @FieldDef(tag = 2)
+    public NodePb mSelf;
+}
@@ -0,0 +1,74 @@
+package pb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pb.PBBytes;
+import pb.PBCodedInputStream;
+import pb.PBCodedOutputStream;
+import pb.PBMessage;
+
+/**
+ * {@link PBMessage} 的 size / serialize / toByteString / parse, 每种 shape 见 {@link Payloads}.
+ * {@link GoogleBenchmark} 用同样的字节测 protobuf-java.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PBBenchmark {
+    @Param({Payloads.FLAT, Payloads.STRING, Payloads.NESTED, Payloads.REPEATED, Payloads.POLYM})
+    public String shape;
+
+    private Class<Object> mType;
+    private PBMessage<Object> mMessage;
+    private byte[] mBytes;
+    // serialize 写到这里, 不算分配
+    private byte[] mBuffer;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        Object object = Payloads.create(shape);
+        mType = (Class<Object>) object.getClass();
+        mMessage = new PBMessage<Object>(object);
+        mBytes = mMessage.toByteArray();
+        mBuffer = new byte[mBytes.length];
+    }
+
+    @Benchmark
+    public int size() throws Exception {
+        return mMessage.size();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws Exception {
+        mMessage.serialize(PBCodedOutputStream.newInstance(mBuffer));
+        return mBuffer;
+    }
+
+    @Benchmark
+    public PBBytes toByteString() throws Exception {
+        return mMessage.toByteString();
+    }
+
+    @Benchmark
+    public Object parse() throws Exception {
+        PBMessage<Object> message = new PBMessage<Object>(mType);
+        message.parse(PBCodedInputStream.newInstance(mBytes));
+        return message.getObject();
+    }
+}
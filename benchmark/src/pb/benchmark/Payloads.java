@@ -0,0 +1,100 @@
+package pb.benchmark;
+
+/**
+ * 各个 benchmark 共用的数据, 按 shape 名字创建, 每次创建的内容都一样.
+ */
+final class Payloads {
+    static final String FLAT = "flat";
+    static final String STRING = "string";
+    static final String NESTED = "nested";
+    static final String REPEATED = "repeated";
+    static final String POLYM = "polym";
+
+    static final int DEPTH = 64;
+    static final int INT_COUNT = 10000;
+    static final int ITEM_COUNT = 1000;
+    static final int SHAPE_COUNT = 1000;
+
+    private Payloads() {
+    }
+
+    static Object create(String shape) {
+        if (FLAT.equals(shape)) {
+            return flat(1);
+        } else if (STRING.equals(shape)) {
+            return strings();
+        } else if (NESTED.equals(shape)) {
+            return nested();
+        } else if (REPEATED.equals(shape)) {
+            return repeated();
+        } else if (POLYM.equals(shape)) {
+            return polym();
+        }
+        throw new IllegalArgumentException("unknown shape: " + shape);
+    }
+
+    static FlatPb flat(int seed) {
+        FlatPb pb = new FlatPb();
+        pb.mInt = seed * 31;
+        pb.mLong = seed * 0x1234567890L;
+        pb.mDouble = seed * 1.5;
+        pb.mFloat = seed * 0.25f;
+        pb.mBool = (seed & 1) != 0;
+        pb.mSInt = -seed;
+        pb.mFixed = seed * 0x0102030405060708L;
+        pb.mUInt = seed * 1000;
+        return pb;
+    }
+
+    static StringPb strings() {
+        StringPb pb = new StringPb();
+        pb.mName = "object-protobuf benchmark";
+        pb.mEmail = "someone@example.com";
+        pb.mAddress = "广东省深圳市南山区科技园 1 号, Shenzhen, China";
+        for (int i = 0; i < 16; i++) {
+            pb.mTags.add(i % 2 == 0 ? "tag-" + i : "标签-" + i);
+        }
+        return pb;
+    }
+
+    static NodePb nested() {
+        NodePb root = null;
+        for (int i = DEPTH; i > 0; i--) {
+            NodePb node = new NodePb();
+            node.mInt = i;
+            node.mSelf = root;
+            root = node;
+        }
+        return root;
+    }
+
+    static RepeatedPb repeated() {
+        RepeatedPb pb = new RepeatedPb();
+        for (int i = 0; i < INT_COUNT; i++) {
+            pb.mInts.add(i * 7);
+        }
+        for (int i = 0; i < ITEM_COUNT; i++) {
+            pb.mItems.add(flat(i));
+        }
+        return pb;
+    }
+
+    static PolymPb polym() {
+        PolymPb pb = new PolymPb();
+        for (int i = 0; i < SHAPE_COUNT; i++) {
+            if (i % 2 == 0) {
+                CirclePb circle = new CirclePb();
+                circle.mId = i;
+                circle.mRadius = i * 0.5;
+                pb.mShapes.add(circle);
+            } else {
+                RectPb rect = new RectPb();
+                rect.mId = i;
+                rect.mWidth = i;
+                rect.mHeight = i * 2.0;
+                pb.mShapes.add(rect);
+            }
+        }
+        return pb;
+    }
+}
@@ -0,0 +1,18 @@
+package pb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PolymDef;
+
+/**
+ * {@link PolymDef} 的 repeated 字段, 元素是不同的子类.
+ */
+@ClassDef
+public class PolymPb {
+    @FieldDef(tag = 1)
+    @PolymDef(classes = {CirclePb.class, RectPb.class}, tags = {1, 2})
+    public List<ShapePb> mShapes = new ArrayList<ShapePb>();
+}
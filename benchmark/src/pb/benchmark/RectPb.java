@@ -0,0 +1,13 @@
+package pb.benchmark;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+@ClassDef
+public class RectPb extends ShapePb {
+    @FieldDef(tag = 2)
+    public double mWidth;
+
+    @FieldDef(tag = 3)
+    public double mHeight;
+}
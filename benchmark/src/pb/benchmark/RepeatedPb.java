@@ -0,0 +1,20 @@
+package pb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+/**
+ * 很长的 repeated 字段.
+ */
+@ClassDef
+public class RepeatedPb {
+    @FieldDef(tag = 1, type = PBWireFormat.FieldType.INT32, packed = true)
+    public List<Integer> mInts = new ArrayList<Integer>();
+
+    @FieldDef(tag = 2)
+    public List<FlatPb> mItems = new ArrayList<FlatPb>();
+}
@@ -0,0 +1,10 @@
+package pb.benchmark;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+@ClassDef
+public class ShapePb {
+    @FieldDef(tag = 1)
+    public int mId;
+}
@@ -0,0 +1,25 @@
+package pb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+/**
+ * 以字符串为主, 有 ASCII 也有中文.
+ */
+@ClassDef
+public class StringPb {
+    @FieldDef(tag = 1)
+    public String mName;
+
+    @FieldDef(tag = 2)
+    public String mEmail;
+
+    @FieldDef(tag = 3)
+    public String mAddress;
+
+    @FieldDef(tag = 4)
+    public List<String> mTags = new ArrayList<String>();
+}
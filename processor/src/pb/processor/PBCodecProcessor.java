@@ -0,0 +1,722 @@
+package pb.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * 编译期为每个 {@code @ClassDef} 类生成 {@code pb.PBCodec} 实现.
+ * <p/>
+ * 生成的 codec 与原类同包, 直接读写字段, 按完整 tag switch 分发. 规则与 {@code pb.FieldBuilder}
+ * 的反射逻辑一致; 遇到反射路径不支持或无法直接访问的字段 (private, 跨包) 时不生成,
+ * 运行时自动回退到反射.
+ */
+@SupportedAnnotationTypes("pb.ClassDef")
+public class PBCodecProcessor extends AbstractProcessor {
+    // 与 pb.FieldBuilder.CODEC_SUFFIX 保持一致
+    private static final String CODEC_SUFFIX = "_PBCodec";
+
+    private static final String CLASS_DEF = "pb.ClassDef";
+    private static final String FIELD_DEF = "pb.FieldDef";
+    private static final String POLYM_DEF = "pb.PolymDef";
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement classDef = processingEnv.getElementUtils().getTypeElement(CLASS_DEF);
+        if (classDef == null) return false;
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(classDef)) {
+            if (element.getKind() != ElementKind.CLASS) continue;
+            TypeElement type = (TypeElement) element;
+            try {
+                List<FieldModel> fields = collectFields(type);
+                writeCodec(type, fields);
+            } catch (UnsupportedException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "pb: no codec generated, falling back to reflection: " + e.getMessage(), type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "pb: failed to write codec: " + e.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    private List<FieldModel> collectFields(TypeElement type) throws UnsupportedException {
+        if (!isAccessibleFromPackage(type)) {
+            throw new UnsupportedException(type + " is not accessible from its package");
+        }
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !hasNoArgConstructor(type)) {
+            // decode 需要直接 new 出对象
+            throw new UnsupportedException(type + " has no accessible no-arg constructor");
+        }
+        List<FieldModel> list = new ArrayList<FieldModel>();
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        addFields(type, pkg, list);
+
+        // 递归父类, 与 FieldBuilder 一样只看直接父类
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            TypeElement superType = (TypeElement) ((DeclaredType) superclass).asElement();
+            if (findAnnotation(superType, CLASS_DEF) != null) {
+                addFields(superType, pkg, list);
+            }
+        }
+        return list;
+    }
+
+    private static boolean hasNoArgConstructor(TypeElement type) {
+        boolean declared = false;
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.CONSTRUCTOR) continue;
+            declared = true;
+            ExecutableElement constructor = (ExecutableElement) member;
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return !declared;
+    }
+
+    private void addFields(TypeElement type, PackageElement pkg, List<FieldModel> list) throws UnsupportedException {
+        Set<Integer> tags = new HashSet<Integer>();
+        for (FieldModel field : list) {
+            tags.add(field.tag);
+        }
+
+        for (Element member : type.getEnclosedElements()) {
+            if (member.getKind() != ElementKind.FIELD) continue;
+            AnnotationMirror fieldDef = findAnnotation(member, FIELD_DEF);
+            if (fieldDef == null) continue;
+
+            VariableElement variable = (VariableElement) member;
+            String where = type.getSimpleName() + "." + variable.getSimpleName();
+            Set<Modifier> modifiers = variable.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+                    || modifiers.contains(Modifier.FINAL)) {
+                throw new UnsupportedException(where + " is private, static or final");
+            }
+            if (!modifiers.contains(Modifier.PUBLIC)
+                    && !processingEnv.getElementUtils().getPackageOf(type).equals(pkg)) {
+                throw new UnsupportedException(where + " is not accessible from " + pkg);
+            }
+
+            FieldModel field = new FieldModel();
+            field.name = variable.getSimpleName().toString();
+            field.tag = intValue(fieldDef, "tag", -1);
+            if (field.tag <= 0 || !tags.add(field.tag)) {
+                throw new UnsupportedException(where + " has an invalid or duplicated tag");
+            }
+
+            TypeMirror fieldType = variable.asType();
+            if (isType(fieldType, "java.util.List")) {
+                List<? extends TypeMirror> args = ((DeclaredType) fieldType).getTypeArguments();
+                if (args.size() != 1) {
+                    throw new UnsupportedException(where + " is a raw List");
+                }
+                field.repeated = true;
+                field.elementType = args.get(0);
+            } else {
+                field.elementType = fieldType;
+            }
+            field.elementName = typeName(field.elementType);
+
+            String declared = enumValue(fieldDef, "type", "UNKNOWN");
+            field.type = "UNKNOWN".equals(declared) ? defaultType(field.elementType) : declared;
+            if (field.type == null || !isCompatible(field.type, field.elementType, pkg)) {
+                throw new UnsupportedException(where + " has an unsupported type " + field.elementType);
+            }
+            field.packed = booleanValue(fieldDef, "packed", false);
+            if (field.packed && (!field.repeated || !isPackable(field.type))) {
+                throw new UnsupportedException(where + " cannot be packed");
+            }
+
+            AnnotationMirror polymDef = findAnnotation(member, POLYM_DEF);
+            if (polymDef != null) {
+                List<String> classes = classListValue(polymDef, "classes");
+                List<Integer> polymTags = intListValue(polymDef, "tags");
+                if (classes.isEmpty() || classes.size() != polymTags.size()) {
+                    throw new UnsupportedException(where + " has a mismatched @PolymDef");
+                }
+                // 只有message并且在List里面才需要多态的支持
+                if (field.repeated && "MESSAGE".equals(field.type)) {
+                    field.polymClasses = classes;
+                    field.polymTags = polymTags;
+                }
+            }
+            list.add(field);
+        }
+    }
+
+    private void writeCodec(TypeElement type, List<FieldModel> fields) throws IOException {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        String codecName = (pkg.isEmpty() ? binaryName : binaryName.substring(pkg.length() + 1)) + CODEC_SUFFIX;
+        String target = typeName(processingEnv.getTypeUtils().erasure(type.asType()));
+
+        StringBuilder out = new StringBuilder();
+        out.append("// Generated by pb.processor.PBCodecProcessor. Do not edit.\n");
+        if (!pkg.isEmpty()) {
+            out.append("package ").append(pkg).append(";\n\n");
+        }
+        out.append("@SuppressWarnings({\"rawtypes\", \"unchecked\"})\n");
+        out.append("public final class ").append(codecName)
+                .append(" implements pb.PBCodec<").append(target).append("> {\n");
+
+        // size, 嵌套message的长度按先序记到 sizes 里, encode 时按同样的顺序取出来
+        out.append("    @Override\n");
+        out.append("    public int size(").append(target)
+                .append(" object) throws pb.InvalidProtocolBufferException {\n");
+        out.append("        return size(object, null);\n");
+        out.append("    }\n\n");
+        out.append("    @Override\n");
+        out.append("    public int size(").append(target)
+                .append(" object, pb.MessageSizes sizes) throws pb.InvalidProtocolBufferException {\n");
+        out.append("        int size = 0;\n");
+        // 只有 message 字段会抛 InvalidProtocolBufferException, 没有时不需要记字段路径
+        boolean hasMessage = hasMessage(fields);
+        StringBuilder body = new StringBuilder();
+        for (FieldModel field : fields) {
+            if (hasMessage) {
+                appendFieldPath(body, "        ", field);
+            }
+            appendSize(body, field);
+        }
+        appendWithFieldPath(out, body, hasMessage);
+        out.append("        return size;\n");
+        out.append("    }\n\n");
+
+        // encode
+        out.append("    @Override\n");
+        out.append("    public void encode(").append(target)
+                .append(" object, pb.PBCodedOutputStream output) throws java.io.IOException {\n");
+        body.setLength(0);
+        for (FieldModel field : fields) {
+            appendFieldPath(body, "        ", field);
+            appendEncode(body, field);
+        }
+        appendWithFieldPath(out, body, !fields.isEmpty());
+        out.append("    }\n\n");
+
+        // merge
+        out.append("    @Override\n");
+        out.append("    public void merge(").append(target)
+                .append(" object, pb.PBCodedInputStream input) throws java.io.IOException {\n");
+        body.setLength(0);
+        body.append("        while (true) {\n");
+        body.append("            field = null;\n");
+        body.append("            int tag = input.readTag();\n");
+        body.append("            switch (tag) {\n");
+        body.append("                case 0:\n");
+        body.append("                    return;\n");
+        for (FieldModel field : fields) {
+            appendMerge(body, field);
+        }
+        body.append("                default:\n");
+        body.append("                    if (pb.PBMetrics.ENABLED) pb.PBMetrics.unknownField(").append(target)
+                .append(".class, tag >>> 3);\n");
+        body.append("                    input.skipField(tag);\n");
+        body.append("                    break;\n");
+        body.append("            }\n");
+        body.append("        }\n");
+        appendWithFieldPath(out, body, true);
+        out.append("    }\n\n");
+
+        // decode
+        out.append("    @Override\n");
+        out.append("    public ").append(target).append(" decode(pb.PBCodedInputStream input) throws java.io.IOException {\n");
+        out.append("        ").append(target).append(" object = new ").append(target).append("();\n");
+        out.append("        merge(object, input);\n");
+        out.append("        return object;\n");
+        out.append("    }\n");
+
+        appendCodecHelpers(out, fields);
+        if (hasPolym(fields)) {
+            appendPolymHelpers(out, fields);
+        }
+        out.append("}\n");
+
+        String qualified = pkg.isEmpty() ? codecName : pkg + "." + codecName;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualified, type);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(out.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * 出错时和 pb.ReflectCodec 一样把字段名加到 InvalidProtocolBufferException 的字段路径里:
+     * {@code body} 里每个字段之前给 field 赋值, 整段包在 try 里. {@code catchable} 为 false 时 body 里不会抛,
+     * 原样输出.
+     */
+    private static void appendWithFieldPath(StringBuilder out, StringBuilder body, boolean catchable) {
+        if (!catchable) {
+            out.append(body);
+            return;
+        }
+        out.append("        String field = null;\n");
+        out.append("        try {\n");
+        // 整段多缩进一层
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf("\n", start) + 1;
+            out.append("    ").append(body, start, end);
+            start = end;
+        }
+        out.append("        } catch (pb.InvalidProtocolBufferException e) {\n");
+        out.append("            throw field != null ? e.addFieldPath(field) : e;\n");
+        out.append("        }\n");
+    }
+
+    private static void appendFieldPath(StringBuilder out, String indent, FieldModel field) {
+        out.append(indent).append("field = \"").append(field.name).append("\";\n");
+    }
+
+    private static boolean hasMessage(List<FieldModel> fields) {
+        for (FieldModel field : fields) {
+            if ("MESSAGE".equals(field.type)) return true;
+        }
+        return false;
+    }
+
+    private void appendSize(StringBuilder out, FieldModel field) {
+        String access = "object." + field.name;
+        if (field.packed) {
+            out.append("        if (").append(access).append(" != null && !").append(access).append(".isEmpty()) {\n");
+            appendPackedDataSize(out, field);
+            out.append("            size += pb.PBCodedOutputStream.computeTagSize(").append(field.tag)
+                    .append(") + pb.PBCodedOutputStream.computeRawVarint32Size(dataSize) + dataSize;\n");
+            out.append("        }\n");
+        } else if (field.repeated) {
+            out.append("        if (").append(access).append(" != null) {\n");
+            out.append("            for (").append(field.elementName).append(" value : ").append(access).append(") {\n");
+            if (field.polymClasses != null) {
+                out.append("                size += pb.PBCodedOutputStream.computeDynamicMessageSize(")
+                        .append(field.tag).append(", (pb.PBCodec) pb.FieldBuilder.getCodec(value.getClass()), value, polymTag_")
+                        .append(field.name).append("(value), sizes);\n");
+            } else {
+                appendNullable(out, "                ", field, "value", "size += " + sizeCall(field, "value") + ";");
+            }
+            out.append("            }\n");
+            out.append("        }\n");
+        } else {
+            appendNullable(out, "        ", field, access, "size += " + sizeCall(field, access) + ";");
+        }
+    }
+
+    private void appendEncode(StringBuilder out, FieldModel field) {
+        String access = "object." + field.name;
+        if (field.packed) {
+            out.append("        if (").append(access).append(" != null && !").append(access).append(".isEmpty()) {\n");
+            appendPackedDataSize(out, field);
+            out.append("            output.writeTag(").append(field.tag).append(", ")
+                    .append(WIRETYPE_LENGTH_DELIMITED).append(");\n");
+            out.append("            output.writeRawVarint32(dataSize);\n");
+            out.append("            for (").append(field.elementName).append(" value : ").append(access).append(") {\n");
+            appendNullable(out, "                ", field, "value",
+                    "output.write" + methodSuffix(field.type) + "NoTag(" + convert(field.type, "value") + ");");
+            out.append("            }\n");
+            out.append("        }\n");
+        } else if (field.repeated) {
+            out.append("        if (").append(access).append(" != null) {\n");
+            out.append("            for (").append(field.elementName).append(" value : ").append(access).append(") {\n");
+            if (field.polymClasses != null) {
+                out.append("                output.writeDynamicMessage(").append(field.tag)
+                        .append(", (pb.PBCodec) pb.FieldBuilder.getCodec(value.getClass()), value, polymTag_")
+                        .append(field.name).append("(value));\n");
+            } else {
+                appendNullable(out, "                ", field, "value", writeCall(field, "value") + ";");
+            }
+            out.append("            }\n");
+            out.append("        }\n");
+        } else {
+            appendNullable(out, "        ", field, access, writeCall(field, access) + ";");
+        }
+    }
+
+    private void appendPackedDataSize(StringBuilder out, FieldModel field) {
+        out.append("            int dataSize = 0;\n");
+        out.append("            for (").append(field.elementName).append(" value : object.").append(field.name).append(") {\n");
+        appendNullable(out, "                ", field, "value", "dataSize += pb.PBCodedOutputStream.compute"
+                + methodSuffix(field.type) + "SizeNoTag(" + convert(field.type, "value") + ");");
+        out.append("            }\n");
+    }
+
+    private void appendMerge(StringBuilder out, FieldModel field) {
+        String indent = "                    ";
+        if (field.repeated && isPackable(field.type)) {
+            // packed, 不管字段本身是否声明为packed都接受
+            out.append("                case ").append(makeTag(field.tag, WIRETYPE_LENGTH_DELIMITED)).append(": {\n");
+            appendFieldPath(out, indent, field);
+            out.append(indent).append("int limit = input.pushLimit(input.readRawVarint32());\n");
+            out.append(indent).append("while (input.getBytesUntilLimit() > 0) {\n");
+            out.append(indent).append("    object.").append(field.name).append(".add(").append(readCall(field)).append(");\n");
+            out.append(indent).append("}\n");
+            out.append(indent).append("input.popLimit(limit);\n");
+            out.append(indent).append("break;\n");
+            out.append("                }\n");
+        }
+        out.append("                case ").append(makeTag(field.tag, wireType(field.type))).append(": {\n");
+        appendFieldPath(out, indent, field);
+        if ("MESSAGE".equals(field.type)) {
+            String value;
+            if (field.polymClasses != null) {
+                value = "(" + field.elementName + ") input.readMessage(polymCodec_" + field.name + "(input.readInt32()))";
+            } else {
+                value = "input.readMessage(codec_" + field.name + "())";
+            }
+            if (field.repeated) {
+                out.append(indent).append("object.").append(field.name).append(".add(").append(value).append(");\n");
+            } else {
+                out.append(indent).append("object.").append(field.name).append(" = ").append(value).append(";\n");
+            }
+        } else {
+            String value = readCall(field);
+            if (field.repeated) {
+                out.append(indent).append("object.").append(field.name).append(".add(").append(value).append(");\n");
+            } else {
+                out.append(indent).append("object.").append(field.name).append(" = ").append(value).append(";\n");
+            }
+        }
+        out.append(indent).append("break;\n");
+        out.append("                }\n");
+    }
+
+    /**
+     * 每个非多态的 message 字段一个取 codec 的方法, 第一次用时才从 FieldBuilder 取, 避免类自己嵌套自己时
+     * 初始化循环. codec 本身不保存状态, 多个线程同时取到的是同一个.
+     * 写的时候按值的实际类型取 codec, 字段里放的是子类时和反射的实现写出一样的数据.
+     */
+    private void appendCodecHelpers(StringBuilder out, List<FieldModel> fields) {
+        for (FieldModel field : fields) {
+            if (!"MESSAGE".equals(field.type) || field.polymClasses != null) continue;
+
+            String codecType = "pb.PBCodec<" + field.elementName + ">";
+            out.append("\n    private ").append(codecType).append(" codec_").append(field.name).append(";\n");
+            out.append("\n    private ").append(codecType).append(" codec_").append(field.name).append("()")
+                    .append(" throws pb.InvalidProtocolBufferException {\n");
+            out.append("        ").append(codecType).append(" codec = codec_").append(field.name).append(";\n");
+            out.append("        if (codec == null) {\n");
+            out.append("            codec = pb.FieldBuilder.getCodec(").append(field.elementName).append(".class);\n");
+            out.append("            codec_").append(field.name).append(" = codec;\n");
+            out.append("        }\n");
+            out.append("        return codec;\n");
+            out.append("    }\n");
+
+            out.append("\n    private ").append(codecType).append(" codec_").append(field.name).append("(")
+                    .append(field.elementName).append(" value) throws pb.InvalidProtocolBufferException {\n");
+            out.append("        if (value.getClass() != ").append(field.elementName).append(".class) {\n");
+            out.append("            return (pb.PBCodec) pb.FieldBuilder.getCodec(value.getClass());\n");
+            out.append("        }\n");
+            out.append("        return codec_").append(field.name).append("();\n");
+            out.append("    }\n");
+        }
+    }
+
+    private void appendPolymHelpers(StringBuilder out, List<FieldModel> fields) {
+        for (FieldModel field : fields) {
+            if (field.polymClasses == null) continue;
+
+            out.append("\n    private static int polymTag_").append(field.name).append("(Object value)")
+                    .append(" throws pb.InvalidProtocolBufferException {\n");
+            out.append("        Class<?> cls = value.getClass();\n");
+            for (int i = 0; i < field.polymClasses.size(); i++) {
+                out.append("        if (cls == ").append(field.polymClasses.get(i)).append(".class) return ")
+                        .append(field.polymTags.get(i)).append(";\n");
+            }
+            out.append("        throw new pb.InvalidProtocolBufferException(\"Unregistered polymorphic class \" + cls.getName());\n");
+            out.append("    }\n");
+
+            out.append("\n    private static pb.PBCodec polymCodec_").append(field.name).append("(int polymTag)")
+                    .append(" throws pb.InvalidProtocolBufferException {\n");
+            out.append("        switch (polymTag) {\n");
+            for (int i = 0; i < field.polymClasses.size(); i++) {
+                String cls = field.polymClasses.get(i);
+                out.append("            case ").append(field.polymTags.get(i)).append(":\n");
+                out.append("                return pb.FieldBuilder.getCodec(").append(cls).append(".class);\n");
+            }
+            out.append("            default:\n");
+            out.append("                throw new pb.InvalidProtocolBufferException(\"Unknown polymorphic tag \" + polymTag);\n");
+            out.append("        }\n");
+            out.append("    }\n");
+        }
+    }
+
+    private void appendNullable(StringBuilder out, String indent, FieldModel field, String access, String statement) {
+        if (field.elementType.getKind().isPrimitive()) {
+            out.append(indent).append(statement).append("\n");
+        } else {
+            // 应对数据上传想不带这个数据的情况,也就是Optional的情况
+            out.append(indent).append("if (").append(access).append(" != null) {\n");
+            out.append(indent).append("    ").append(statement).append("\n");
+            out.append(indent).append("}\n");
+        }
+    }
+
+    private static String sizeCall(FieldModel field, String value) {
+        String type = field.type;
+        if ("MESSAGE".equals(type)) {
+            return "pb.PBCodedOutputStream.computeMessageSize(" + field.tag + ", codec_" + field.name + "(" + value + "), " + value + ", sizes)";
+        }
+        return "pb.PBCodedOutputStream.compute" + methodSuffix(type) + "Size(" + field.tag + ", " + convert(type, value) + ")";
+    }
+
+    private static String writeCall(FieldModel field, String value) {
+        String type = field.type;
+        if ("MESSAGE".equals(type)) {
+            return "output.writeMessage(" + field.tag + ", codec_" + field.name + "(" + value + "), " + value + ")";
+        }
+        return "output.write" + methodSuffix(type) + "(" + field.tag + ", " + convert(type, value) + ")";
+    }
+
+    private static String readCall(FieldModel field) {
+        String call = "input.read" + methodSuffix(field.type) + "()";
+        // UINT32 在java里用long保存, 见 PBCodedOutputStream.writeField
+        return "UINT32".equals(field.type) ? "(long) " + call : call;
+    }
+
+    private static String convert(String type, String value) {
+        return "UINT32".equals(type) ? "(int) (long) " + value : value;
+    }
+
+    private static String methodSuffix(String type) {
+        if ("DOUBLE".equals(type)) return "Double";
+        if ("FLOAT".equals(type)) return "Float";
+        if ("INT64".equals(type)) return "Int64";
+        if ("UINT64".equals(type)) return "UInt64";
+        if ("INT32".equals(type)) return "Int32";
+        if ("UINT32".equals(type)) return "UInt32";
+        if ("BOOL".equals(type)) return "Bool";
+        if ("FIXED64".equals(type)) return "Fixed64";
+        if ("FIXED32".equals(type)) return "Fixed32";
+        if ("ENUM".equals(type)) return "Enum";
+        if ("SFIXED32".equals(type)) return "SFixed32";
+        if ("SFIXED64".equals(type)) return "SFixed64";
+        if ("SINT32".equals(type)) return "SInt32";
+        if ("SINT64".equals(type)) return "SInt64";
+        if ("STRING".equals(type)) return "String";
+        if ("BYTES".equals(type)) return "Bytes";
+        throw new IllegalArgumentException(type);
+    }
+
+    private static int wireType(String type) {
+        if ("DOUBLE".equals(type) || "FIXED64".equals(type) || "SFIXED64".equals(type)) return WIRETYPE_FIXED64;
+        if ("FLOAT".equals(type) || "FIXED32".equals(type) || "SFIXED32".equals(type)) return WIRETYPE_FIXED32;
+        if ("STRING".equals(type) || "BYTES".equals(type) || "MESSAGE".equals(type)) return WIRETYPE_LENGTH_DELIMITED;
+        return WIRETYPE_VARINT;
+    }
+
+    /**
+     * 与 pb.PBInfo.isPackable 相同.
+     */
+    private static boolean isPackable(String type) {
+        return !"STRING".equals(type) && !"BYTES".equals(type) && !"MESSAGE".equals(type);
+    }
+
+    private static int makeTag(int fieldNumber, int wireType) {
+        return (fieldNumber << 3) | wireType;
+    }
+
+    /**
+     * 与 FieldBuilder.getFieldType 相同的默认映射.
+     */
+    private String defaultType(TypeMirror type) {
+        switch (type.getKind()) {
+            case INT:
+                return "INT32";
+            case FLOAT:
+                return "FLOAT";
+            case DOUBLE:
+                return "DOUBLE";
+            case LONG:
+                return "INT64";
+            case BOOLEAN:
+                return "BOOL";
+            case DECLARED:
+                if (isType(type, "java.lang.String")) return "STRING";
+                if (isType(type, "pb.PBBytes")) return "BYTES";
+                if (findAnnotation(((DeclaredType) type).asElement(), CLASS_DEF) != null) return "MESSAGE";
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 只接受 PBCodedOutputStream.writeField 能处理的 java 类型, 其余交给反射路径.
+     */
+    private boolean isCompatible(String fieldType, TypeMirror type, PackageElement pkg) {
+        if ("DOUBLE".equals(fieldType)) return isPrimitiveOrBoxed(type, TypeKind.DOUBLE);
+        if ("FLOAT".equals(fieldType)) return isPrimitiveOrBoxed(type, TypeKind.FLOAT);
+        if ("INT64".equals(fieldType) || "UINT64".equals(fieldType) || "UINT32".equals(fieldType)
+                || "FIXED64".equals(fieldType) || "SFIXED64".equals(fieldType) || "SINT64".equals(fieldType)) {
+            return isPrimitiveOrBoxed(type, TypeKind.LONG);
+        }
+        if ("INT32".equals(fieldType) || "FIXED32".equals(fieldType) || "SFIXED32".equals(fieldType)
+                || "SINT32".equals(fieldType) || "ENUM".equals(fieldType)) {
+            return isPrimitiveOrBoxed(type, TypeKind.INT);
+        }
+        if ("BOOL".equals(fieldType)) return isPrimitiveOrBoxed(type, TypeKind.BOOLEAN);
+        if ("STRING".equals(fieldType)) return isType(type, "java.lang.String");
+        if ("BYTES".equals(fieldType)) return isType(type, "pb.PBBytes");
+        if ("MESSAGE".equals(fieldType)) {
+            if (type.getKind() != TypeKind.DECLARED) return false;
+            TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+            return findAnnotation(element, CLASS_DEF) != null && isAccessibleFromPackage(element)
+                    && (element.getModifiers().contains(Modifier.PUBLIC)
+                    || processingEnv.getElementUtils().getPackageOf(element).equals(pkg));
+        }
+        return false;
+    }
+
+    private boolean isPrimitiveOrBoxed(TypeMirror type, TypeKind kind) {
+        if (type.getKind() == kind) return true;
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        try {
+            TypeMirror unboxed = processingEnv.getTypeUtils().unboxedType(type);
+            return unboxed.getKind() == kind;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private boolean isType(TypeMirror type, String qualifiedName) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        TypeElement element = (TypeElement) ((DeclaredType) type).asElement();
+        return element.getQualifiedName().contentEquals(qualifiedName);
+    }
+
+    private String typeName(TypeMirror type) {
+        if (type.getKind() == TypeKind.DECLARED) {
+            return ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName().toString();
+        }
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static boolean isAccessibleFromPackage(TypeElement type) {
+        Element current = type;
+        while (current instanceof TypeElement) {
+            if (current.getModifiers().contains(Modifier.PRIVATE)) return false;
+            if (((TypeElement) current).getNestingKind() == NestingKind.TOP_LEVEL) return true;
+            if (((TypeElement) current).getNestingKind() != NestingKind.MEMBER) return false;
+            current = current.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private static boolean hasPolym(List<FieldModel> fields) {
+        for (FieldModel field : fields) {
+            if (field.polymClasses != null) return true;
+        }
+        return false;
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String name) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotation.getQualifiedName().contentEquals(name)) return mirror;
+        }
+        return null;
+    }
+
+    private static AnnotationValue findValue(AnnotationMirror mirror, String key) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals(key)) return entry.getValue();
+        }
+        return null;
+    }
+
+    private static int intValue(AnnotationMirror mirror, String key, int defaultValue) {
+        AnnotationValue value = findValue(mirror, key);
+        return value == null ? defaultValue : ((Number) value.getValue()).intValue();
+    }
+
+    private static boolean booleanValue(AnnotationMirror mirror, String key, boolean defaultValue) {
+        AnnotationValue value = findValue(mirror, key);
+        return value == null ? defaultValue : (Boolean) value.getValue();
+    }
+
+    private static String enumValue(AnnotationMirror mirror, String key, String defaultValue) {
+        AnnotationValue value = findValue(mirror, key);
+        return value == null ? defaultValue : ((VariableElement) value.getValue()).getSimpleName().toString();
+    }
+
+    private List<String> classListValue(AnnotationMirror mirror, String key) {
+        List<String> result = new ArrayList<String>();
+        AnnotationValue value = findValue(mirror, key);
+        if (value != null) {
+            for (Object item : (List<?>) value.getValue()) {
+                result.add(typeName((TypeMirror) ((AnnotationValue) item).getValue()));
+            }
+        }
+        return result;
+    }
+
+    private static List<Integer> intListValue(AnnotationMirror mirror, String key) {
+        List<Integer> result = new ArrayList<Integer>();
+        AnnotationValue value = findValue(mirror, key);
+        if (value != null) {
+            for (Object item : (List<?>) value.getValue()) {
+                result.add(((Number) ((AnnotationValue) item).getValue()).intValue());
+            }
+        }
+        return result;
+    }
+
+    private static class FieldModel {
+        String name;
+        int tag;
+        String type;
+        boolean repeated;
+        boolean packed;
+        TypeMirror elementType;
+        String elementName;
+        List<String> polymClasses;
+        List<Integer> polymTags;
+    }
+
+    private static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 2960405622658640143L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+}
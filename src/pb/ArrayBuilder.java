@@ -0,0 +1,83 @@
+package pb;
+
+import java.lang.reflect.Array;
+
+/**
+ * 解析基本类型数组字段 (int[], long[] 等) 时用的可增长数组, 元素不装箱.
+ * <p/>
+ * 同一个字段不 packed 时每个元素单独出现, 所以整个 message 解析完之后才用 {@link #toArray()} 写回字段,
+ * 不会每个元素重新分配一次数组.
+ */
+final class ArrayBuilder {
+    private static final int MIN_CAPACITY = 16;
+
+    private final Class<?> mComponentType;
+    private Object mArray;
+    private int mCapacity;
+    private int mCount;
+
+    /**
+     * @param initial 字段原来的值, 新元素追加在后面; 不会修改它
+     */
+    ArrayBuilder(Class<?> componentType, Object initial) {
+        mComponentType = componentType;
+        if (initial != null) {
+            mArray = initial;
+            mCapacity = mCount = Array.getLength(initial);
+        } else {
+            mArray = Array.newInstance(componentType, MIN_CAPACITY);
+            mCapacity = MIN_CAPACITY;
+        }
+    }
+
+    /**
+     * 保证还能再放 {@code extra} 个元素.
+     */
+    void ensure(int extra) {
+        int need = mCount + extra;
+        if (need > mCapacity) {
+            int capacity = Math.max(need, Math.max(mCapacity * 2, MIN_CAPACITY));
+            Object array = Array.newInstance(mComponentType, capacity);
+            System.arraycopy(mArray, 0, array, 0, mCount);
+            mArray = array;
+            mCapacity = capacity;
+        }
+    }
+
+    void addInt(int value) {
+        if (mCount == mCapacity) ensure(1);
+        ((int[]) mArray)[mCount++] = value;
+    }
+
+    void addLong(long value) {
+        if (mCount == mCapacity) ensure(1);
+        ((long[]) mArray)[mCount++] = value;
+    }
+
+    void addFloat(float value) {
+        if (mCount == mCapacity) ensure(1);
+        ((float[]) mArray)[mCount++] = value;
+    }
+
+    void addDouble(double value) {
+        if (mCount == mCapacity) ensure(1);
+        ((double[]) mArray)[mCount++] = value;
+    }
+
+    void addBoolean(boolean value) {
+        if (mCount == mCapacity) ensure(1);
+        ((boolean[]) mArray)[mCount++] = value;
+    }
+
+    /**
+     * 返回正好 {@code count} 个元素的数组.
+     */
+    Object toArray() {
+        if (mCount == mCapacity) {
+            return mArray;
+        }
+        Object array = Array.newInstance(mComponentType, mCount);
+        System.arraycopy(mArray, 0, array, 0, mCount);
+        return array;
+    }
+}
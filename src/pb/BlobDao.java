@@ -0,0 +1,43 @@
+package pb;
+
+import java.io.IOException;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * {@link DaoType#ProtocolBuffer}: 整个对象用它的 {@link PBCodec} 序列化, 存在 {@link #DATA_COLUMN} 一列里.
+ */
+final class BlobDao<T> extends PBDao<T> {
+    static final String DATA_COLUMN = "data";
+    private static final String[] NAMES = {DATA_COLUMN};
+    private static final String[] TYPES = {"BLOB"};
+
+    private final PBCodec<T> mCodec;
+
+    BlobDao(SQLiteDatabase database, String table, Class<T> type) throws InvalidProtocolBufferException {
+        super(database, table);
+        mCodec = FieldBuilder.getCodec(type);
+    }
+
+    @Override
+    String[] columnNames() {
+        return NAMES;
+    }
+
+    @Override
+    String[] columnTypes() {
+        return TYPES;
+    }
+
+    @Override
+    void bind(SQLiteStatement statement, T object) throws IOException {
+        statement.bindBlob(1, encode(mCodec, object));
+    }
+
+    @Override
+    T read(Cursor cursor) throws IOException {
+        return mCodec.decode(PBCodedInputStream.newInstance(cursor.getBlob(1)));
+    }
+}
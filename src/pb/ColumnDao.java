@@ -0,0 +1,170 @@
+package pb;
+
+import java.io.IOException;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * {@link DaoType#SQLLite}: 每个字段一列, 列名是 java 字段名.
+ * <p/>
+ * 非 repeated 的数值, 字符串和 bytes 字段存成 INTEGER / REAL / TEXT / BLOB, 可以直接在 SQL 里查询.
+ * 其余字段 (message, repeated, map, 数组) 存成 BLOB, 内容是只有这一个字段的 protobuf 编码, 读的时候合并回对象;
+ * 字段为空时存 NULL.
+ */
+final class ColumnDao<T> extends PBDao<T> {
+    private final ReflectCodec<T> mCodec;
+    private final PBInfo[] mFields;
+    // 字段能否直接存成一列, 否则存成编码后的 BLOB
+    private final boolean[] mScalar;
+    private final String[] mNames;
+    private final String[] mTypes;
+
+    @SuppressWarnings("unchecked")
+    ColumnDao(SQLiteDatabase database, String table, Class<T> type) throws InvalidProtocolBufferException {
+        super(database, table);
+        FieldInfoCacheItem item = FieldBuilder.getItem(type);
+        mCodec = (ReflectCodec<T>) (ReflectCodec<?>) item.mReflectCodec;
+        List<PBInfo> fields = item.mInfo;
+        int n = fields.size();
+        mFields = fields.toArray(new PBInfo[n]);
+        mScalar = new boolean[n];
+        mNames = new String[n];
+        mTypes = new String[n];
+        for (int i = 0; i < n; i++) {
+            PBInfo info = mFields[i];
+            mScalar[i] = isScalar(info);
+            mNames[i] = info.mField.getName();
+            mTypes[i] = mScalar[i] ? columnType(info.mType) : "BLOB";
+        }
+    }
+
+    private static boolean isScalar(PBInfo info) {
+        return !info.mArray && !info.mMap && !info.mLazy
+                && info.mLabel != PBWireFormat.FieldLabel.REPEATED
+                && info.mType != PBWireFormat.FieldType.MESSAGE
+                && info.mType != PBWireFormat.FieldType.GROUP;
+    }
+
+    private static String columnType(PBWireFormat.FieldType type) {
+        switch (type) {
+            case DOUBLE:
+            case FLOAT:
+                return "REAL";
+            case STRING:
+                return "TEXT";
+            case BYTES:
+                return "BLOB";
+            default:
+                return "INTEGER";
+        }
+    }
+
+    @Override
+    String[] columnNames() {
+        return mNames;
+    }
+
+    @Override
+    String[] columnTypes() {
+        return mTypes;
+    }
+
+    @Override
+    void bind(SQLiteStatement statement, T object) throws IOException {
+        try {
+            for (int i = 0; i < mFields.length; i++) {
+                PBInfo info = mFields[i];
+                if (mScalar[i]) {
+                    bindScalar(statement, i + 1, info.mType, info.mAccessor.get(object));
+                } else {
+                    int size = ReflectCodec.computeFieldSize(info, object, null);
+                    if (size == 0) {
+                        statement.bindNull(i + 1);
+                    } else {
+                        byte[] bytes = new byte[size];
+                        PBCodedOutputStream output = PBCodedOutputStream.newInstance(bytes);
+                        ReflectCodec.writeField(info, object, output);
+                        output.checkNoSpaceLeft();
+                        statement.bindBlob(i + 1, bytes);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+    }
+
+    private static void bindScalar(SQLiteStatement statement, int index, PBWireFormat.FieldType type, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+            return;
+        }
+        switch (type) {
+            case DOUBLE:
+            case FLOAT:
+                statement.bindDouble(index, ((Number) value).doubleValue());
+                break;
+            case BOOL:
+                statement.bindLong(index, (Boolean) value ? 1 : 0);
+                break;
+            case STRING:
+                statement.bindString(index, (String) value);
+                break;
+            case BYTES:
+                statement.bindBlob(index, value instanceof byte[] ? (byte[]) value : ((PBBytes) value).toByteArray());
+                break;
+            default:
+                statement.bindLong(index, ((Number) value).longValue());
+                break;
+        }
+    }
+
+    @Override
+    T read(Cursor cursor) throws IOException {
+        T object = mCodec.newInstance();
+        try {
+            for (int i = 0; i < mFields.length; i++) {
+                int column = i + 1;
+                if (cursor.isNull(column)) {
+                    continue;
+                }
+                PBInfo info = mFields[i];
+                if (mScalar[i]) {
+                    info.mAccessor.set(object, readScalar(cursor, column, info));
+                } else {
+                    mCodec.merge(object, PBCodedInputStream.newInstance(cursor.getBlob(column)));
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+        return object;
+    }
+
+    private static Object readScalar(Cursor cursor, int column, PBInfo info) {
+        switch (info.mType) {
+            case DOUBLE:
+                return cursor.getDouble(column);
+            case FLOAT:
+                return cursor.getFloat(column);
+            case BOOL:
+                return cursor.getLong(column) != 0;
+            case STRING:
+                return cursor.getString(column);
+            case BYTES:
+                byte[] bytes = cursor.getBlob(column);
+                return info.mField.getType() == byte[].class ? bytes : PBBytes.copyFrom(bytes);
+            case INT64:
+            case UINT64:
+            case FIXED64:
+            case SFIXED64:
+            case SINT64:
+                return cursor.getLong(column);
+            default:
+                return cursor.getInt(column);
+        }
+    }
+}
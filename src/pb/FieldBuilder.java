@@ -5,9 +5,8 @@ import java.lang.reflect.Field;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 class PolymItem {
     public Class<?> mClass;
@@ -23,30 +22,88 @@ class FieldInfoCacheItem {
     public Class<?> mClass;
     public Constructor<?> mConstructor;
     public List<PBInfo> mInfo;
+    // tag -> mInfo 里的位置
+    FieldIndex mIndex;
+    // 编译期生成的codec, 没有则为null, 走反射
+    public PBCodec<Object> mCodec;
+    // 按反射实现的codec, 总是有
+    ReflectCodec<Object> mReflectCodec;
 
-    public FieldInfoCacheItem(Class<?> type, List<PBInfo> infoList) throws NoSuchMethodException {
+    public FieldInfoCacheItem(Class<?> type, List<PBInfo> infoList) throws NoSuchMethodException, InvalidProtocolBufferException {
         mClass = type;
         mConstructor = mClass.getDeclaredConstructor();
         //private access
         mConstructor.setAccessible(true);
         mInfo = infoList;
+        mIndex = new FieldIndex(infoList);
+        mCodec = FieldBuilder.findGeneratedCodec(type);
+        mReflectCodec = new ReflectCodec<Object>(this);
+    }
+
+    /**
+     * 有生成的codec时返回它, 否则返回反射实现的.
+     */
+    PBCodec<Object> getCodec() {
+        return mCodec != null ? mCodec : mReflectCodec;
     }
 }
 
 public class FieldBuilder {
-    private static final int MAX_CACHE_SIZE = 20;
-    private static Queue<FieldInfoCacheItem> m_infoCache = new LinkedList<FieldInfoCacheItem>();
+    // 生成的codec类名 = 原类名 + CODEC_SUFFIX, 见 pb.processor.PBCodecProcessor
+    public static final String CODEC_SUFFIX = "_PBCodec";
+    // 缓存容量, <= 0 表示不限
+    public static final int DEFAULT_CACHE_CAPACITY = 0;
+    private static final FieldInfoCache m_infoCache = new FieldInfoCache(DEFAULT_CACHE_CAPACITY);
+    private static volatile PBAccessor.Strategy m_accessorStrategy = PBAccessor.Strategy.TYPED;
+
+    public static PBAccessor.Strategy getAccessorStrategy() {
+        return m_accessorStrategy;
+    }
+
+    /**
+     * 切换字段访问方式, 已缓存的类会被清掉, 下次 Build 时按新的方式重新生成.
+     */
+    public static void setAccessorStrategy(PBAccessor.Strategy strategy) {
+        m_accessorStrategy = strategy;
+        m_infoCache.clear();
+    }
+
+    /**
+     * 设置缓存的类数量上限, 超过时按LRU淘汰; <= 0 表示不限 (默认).
+     */
+    public static void setCacheCapacity(int capacity) {
+        m_infoCache.setCapacity(capacity);
+    }
+
+    public static int getCacheCapacity() {
+        return m_infoCache.getCapacity();
+    }
+
+    public static int getCacheSize() {
+        return m_infoCache.size();
+    }
+
+    public static long getCacheHitCount() {
+        return m_infoCache.getHitCount();
+    }
+
+    public static long getCacheMissCount() {
+        return m_infoCache.getMissCount();
+    }
+
+    public static long getCacheEvictionCount() {
+        return m_infoCache.getEvictionCount();
+    }
+
+    public static void clearCache() {
+        m_infoCache.clear();
+    }
 
-    public static FieldInfoCacheItem Build(Class<?> type) throws NoSuchMethodException {
-        FieldInfoCacheItem item = getCache(type);
+    public static FieldInfoCacheItem Build(Class<?> type) throws NoSuchMethodException, InvalidProtocolBufferException {
+        FieldInfoCacheItem item = m_infoCache.get(type);
+        if (PBMetrics.ENABLED) PBMetrics.schemaLookup(type, item != null);
         if (item == null) {
             List<PBInfo> list = new ArrayList<PBInfo>();
-            item = new FieldInfoCacheItem(type, list);
-
-            m_infoCache.offer(item);
-            if (m_infoCache.size() > MAX_CACHE_SIZE) {
-                m_infoCache.poll();
-            }
             addField(type, list);
 
             // 递归父类
@@ -57,11 +114,17 @@ public class FieldBuilder {
                     addField(superclass, list);
                 }
             }
+
+            // 构造完整之后才放进缓存, 避免别的线程拿到一半的字段列表
+            item = m_infoCache.putIfAbsent(new FieldInfoCacheItem(type, list));
         }
         return item;
     }
 
-    private static void addField(Class<?> type, List<PBInfo> list) {
+    /**
+     * 标注写错的字段直接让整个类的 schema 失败, 异常带上 "类名.字段名", 不悄悄丢掉这个字段.
+     */
+    private static void addField(Class<?> type, List<PBInfo> list) throws InvalidProtocolBufferException {
         for (Field field : type.getDeclaredFields()) {
             //private access
             field.setAccessible(true);
@@ -84,41 +147,97 @@ public class FieldBuilder {
                     }
 
                     Class<?> classType = getRealClassType(field);
-                    if (annField.type() == PBWireFormat.FieldType.UNKNOWN) {
-                        list.add(new PBInfo(
-                                getFieldTag(annField.tag(), list),
-                                getFieldType(classType),
-                                getFieldLabel(field),
-                                field,
-                                classType,
-                                polymList));
-                    } else {
-                        // 指定需要序列化成什么类型
-                        list.add(new PBInfo(
-                                getFieldTag(annField.tag(), list),
-                                annField.type(),
-                                getFieldLabel(field),
-                                field,
-                                classType,
-                                polymList));
+                    PBAccessor accessor = PBAccessor.create(field, m_accessorStrategy);
+                    // 没有指定时按java类型决定序列化成什么类型
+                    PBWireFormat.FieldType fieldType = annField.type() == PBWireFormat.FieldType.UNKNOWN
+                            ? getFieldType(Map.class.isAssignableFrom(field.getType()) ? unbox(classType) : classType)
+                            : annField.type();
+                    PBWireFormat.FieldLabel label = getFieldLabel(field);
+                    if (annField.packed() && (label != PBWireFormat.FieldLabel.REPEATED || !PBInfo.isPackable(fieldType))) {
+                        throw InvalidProtocolBufferException.invalidWireType();
                     }
+                    if (field.getType().isArray() && field.getType() != byte[].class && !isArrayType(fieldType, classType)) {
+                        throw InvalidProtocolBufferException.invalidJavaType();
+                    }
+                    PBInfo info = new PBInfo(
+                            getFieldTag(annField.tag(), list),
+                            fieldType,
+                            label,
+                            field,
+                            accessor,
+                            classType,
+                            polymList);
+                    info.mPacked = annField.packed();
+                    if (info.mMap) {
+                        info.mKeyClass = getMapKeyClass(field);
+                        info.mKeyType = annField.keyType() == PBWireFormat.FieldType.UNKNOWN
+                                ? getFieldType(unbox(info.mKeyClass)) : annField.keyType();
+                        if (!isMapKeyType(info.mKeyType) || annField.packed()) {
+                            throw InvalidProtocolBufferException.invalidJavaType();
+                        }
+                        info.mMapClass = annField.mapClass();
+                        try {
+                            info.mMapConstructor = info.mMapClass.getDeclaredConstructor();
+                        } catch (NoSuchMethodException e) {
+                            throw InvalidProtocolBufferException.invalidJavaType();
+                        }
+                        info.mMapConstructor.setAccessible(true);
+                    }
+                    list.add(info);
 
                 } catch (InvalidProtocolBufferException e) {
-                    e.printStackTrace();
+                    throw e.addFieldPath(type.getSimpleName() + "." + field.getName());
                 }
             }
         }
     }
 
-    private static FieldInfoCacheItem getCache(Class<?> type) {
-        for (FieldInfoCacheItem item : m_infoCache) {
-            if (item.mClass == type) return item;
+    /**
+     * 返回 {@code type} 的 codec: 有生成的codec时用它, 否则用反射实现的. 每个类只有一个, 不保存状态,
+     * 可以在多个线程之间共享; 嵌套的message也直接交给各自的codec, 不创建 {@link PBMessage}.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> PBCodec<T> getCodec(Class<T> type) throws InvalidProtocolBufferException {
+        return (PBCodec<T>) getItem(type).getCodec();
+    }
+
+    static FieldInfoCacheItem getItem(Class<?> type) throws InvalidProtocolBufferException {
+        try {
+            return Build(type);
+        } catch (NoSuchMethodException e) {
+            // 没有无参构造函数
+            InvalidProtocolBufferException error = InvalidProtocolBufferException.invalidJavaType();
+            error.initCause(e);
+            throw error.addFieldPath(type.getSimpleName());
+        }
+    }
+
+    /**
+     * 按类名找生成的codec, 没有时返回 null. 找到了但创建失败时抛异常, 不悄悄回退到反射.
+     */
+    @SuppressWarnings("unchecked")
+    static PBCodec<Object> findGeneratedCodec(Class<?> type) throws InvalidProtocolBufferException {
+        Class<?> codecClass;
+        try {
+            codecClass = Class.forName(type.getName() + CODEC_SUFFIX, true, type.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            // 没有生成codec, 回退到反射
+            return null;
+        }
+        if (!PBCodec.class.isAssignableFrom(codecClass)) {
+            return null;
+        }
+        try {
+            return (PBCodec<Object>) codecClass.getDeclaredConstructor().newInstance();
+        } catch (Exception e) {
+            InvalidProtocolBufferException error = InvalidProtocolBufferException.invalidJavaType();
+            error.initCause(e);
+            throw error;
         }
-        return null;
     }
 
     private static int getFieldTag(int value, List<PBInfo> list) throws InvalidProtocolBufferException {
-        if (value == -1) {
+        if (value <= 0) {
             throw InvalidProtocolBufferException.invalidTag();
         } else {
             for (PBInfo field : list) {
@@ -132,7 +251,17 @@ public class FieldBuilder {
 
     private static Class<?> getRealClassType(Field field) throws InvalidProtocolBufferException {
         Class<?> type = field.getType();
-        if (type == List.class) {
+        if (type.isArray() && type != byte[].class) {
+            // 基本类型数组, byte[] 本身就是 BYTES
+            Class<?> component = type.getComponentType();
+            if (!component.isPrimitive()) {
+                throw InvalidProtocolBufferException.invalidJavaType();
+            }
+            return component;
+        } else if (Map.class.isAssignableFrom(type)) {
+            // Map 字段按 value 的类型
+            return getTypeArgument(field, 1, 2);
+        } else if (type == List.class || type == PBLazy.class) {
             Type[] types = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
             if (types.length != 1) {
                 throw InvalidProtocolBufferException.invalidJavaType();
@@ -143,6 +272,49 @@ public class FieldBuilder {
         }
     }
 
+    private static Class<?> getMapKeyClass(Field field) throws InvalidProtocolBufferException {
+        return getTypeArgument(field, 0, 2);
+    }
+
+    private static Class<?> getTypeArgument(Field field, int index, int count) throws InvalidProtocolBufferException {
+        if (!(field.getGenericType() instanceof ParameterizedType)) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+        Type[] types = ((ParameterizedType) field.getGenericType()).getActualTypeArguments();
+        if (types.length != count || !(types[index] instanceof Class)) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+        return (Class<?>) types[index];
+    }
+
+    /**
+     * Map 的 key/value 只能是包装类型, 按对应的基本类型推断序列化类型.
+     */
+    private static Class<?> unbox(Class<?> type) {
+        if (type == Integer.class) return Integer.TYPE;
+        else if (type == Long.class) return Long.TYPE;
+        else if (type == Float.class) return Float.TYPE;
+        else if (type == Double.class) return Double.TYPE;
+        else if (type == Boolean.class) return Boolean.TYPE;
+        else return type;
+    }
+
+    /**
+     * 同 protobuf, map 的 key 只能是整数, bool 和 string.
+     */
+    private static boolean isMapKeyType(PBWireFormat.FieldType type) {
+        switch (type) {
+            case FLOAT:
+            case DOUBLE:
+            case BYTES:
+            case MESSAGE:
+            case UNKNOWN:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     private static PBWireFormat.FieldType getFieldType(Class<?> type) throws InvalidProtocolBufferException {
         ClassDef annMessage = type.getAnnotation(ClassDef.class);
         if (annMessage == null) {
@@ -151,7 +323,7 @@ public class FieldBuilder {
             else if (type == Double.TYPE) return PBWireFormat.FieldType.DOUBLE;
             else if (type == Long.TYPE) return PBWireFormat.FieldType.INT64;
             else if (type == String.class) return PBWireFormat.FieldType.STRING;
-            else if (type == PBBytes.class) return PBWireFormat.FieldType.BYTES;
+            else if (type == PBBytes.class || type == byte[].class) return PBWireFormat.FieldType.BYTES;
             else if (type == Boolean.TYPE) return PBWireFormat.FieldType.BOOL;
             else throw InvalidProtocolBufferException.invalidJavaType();
         } else {
@@ -159,9 +331,40 @@ public class FieldBuilder {
         }
     }
 
+    /**
+     * 数组字段的元素类型要和序列化类型的宽度一致, 如 int[] 只能是 INT32/SINT32/FIXED32/SFIXED32/ENUM.
+     */
+    private static boolean isArrayType(PBWireFormat.FieldType fieldType, Class<?> component) {
+        switch (fieldType) {
+            case INT32:
+            case SINT32:
+            case FIXED32:
+            case SFIXED32:
+            case ENUM:
+                return component == Integer.TYPE;
+            case INT64:
+            case UINT64:
+            case SINT64:
+            case FIXED64:
+            case SFIXED64:
+            case UINT32:
+                return component == Long.TYPE;
+            case FLOAT:
+                return component == Float.TYPE;
+            case DOUBLE:
+                return component == Double.TYPE;
+            case BOOL:
+                return component == Boolean.TYPE;
+            default:
+                return false;
+        }
+    }
+
     private static PBWireFormat.FieldLabel getFieldLabel(Field field) {
         Class<?> type = field.getType();
-        if (type == List.class) return PBWireFormat.FieldLabel.REPEATED;
-        else return PBWireFormat.FieldLabel.OPTIONAL;
+        if (type == List.class || Map.class.isAssignableFrom(type) || (type.isArray() && type != byte[].class)) {
+            return PBWireFormat.FieldLabel.REPEATED;
+        }
+        return PBWireFormat.FieldLabel.OPTIONAL;
     }
 }
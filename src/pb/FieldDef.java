@@ -4,6 +4,8 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by wallace on 14-1-15.
@@ -16,5 +18,16 @@ public @interface FieldDef {
     int tag() default -1;
 
     PBWireFormat.FieldType type() default PBWireFormat.FieldType.UNKNOWN;
+
+    // repeated 的数值字段按 packed 编码成一段, 解析时两种编码都接受
+    boolean packed() default false;
+
+    // Map 字段的 key 类型, type 是 value 的类型; 不指定时按java类型决定
+    PBWireFormat.FieldType keyType() default PBWireFormat.FieldType.UNKNOWN;
+
+    // Map 字段为 null 时解析用的实现, 要有无参构造函数; 字段不为 null 时直接放进原来的 Map,
+    // 可以先按预计大小创建好, 或者用 key 为基本类型的专门实现
+    @SuppressWarnings("rawtypes")
+    Class<? extends Map> mapClass() default HashMap.class;
 }
 
@@ -0,0 +1,92 @@
+package pb;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 按 tag 查找字段在声明顺序里的位置, 用于 {@link PBMessage#parse}.
+ * <p/>
+ * tag 范围小的时候直接用数组下标, 否则用开放寻址的 int 哈希表. {@link #find(int, int)}
+ * 先按声明顺序猜下一个字段, 我们自己序列化出来的数据基本都能猜中.
+ */
+final class FieldIndex {
+    private static final int MIN_DENSE_SIZE = 32;
+    private static final int DENSE_FACTOR = 4;
+
+    private final int[] mTags;
+    // 稠密表: 下标是tag, 值是位置, -1 表示没有
+    private final int[] mDense;
+    // 稀疏表: 线性探测, key 为 0 表示空 (tag 不可能是 0)
+    private final int[] mKeys;
+    private final int[] mValues;
+    private final int mMask;
+
+    FieldIndex(List<PBInfo> fields) {
+        int count = fields.size();
+        mTags = new int[count];
+        int maxTag = 0;
+        for (int i = 0; i < count; i++) {
+            mTags[i] = fields.get(i).mTag;
+            maxTag = Math.max(maxTag, mTags[i]);
+        }
+
+        if (maxTag < Math.max(MIN_DENSE_SIZE, count * DENSE_FACTOR)) {
+            mDense = new int[maxTag + 1];
+            Arrays.fill(mDense, -1);
+            for (int i = 0; i < count; i++) {
+                mDense[mTags[i]] = i;
+            }
+            mKeys = null;
+            mValues = null;
+            mMask = 0;
+        } else {
+            int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+            mDense = null;
+            mKeys = new int[capacity];
+            mValues = new int[capacity];
+            mMask = capacity - 1;
+            for (int i = 0; i < count; i++) {
+                int slot = hash(mTags[i]) & mMask;
+                while (mKeys[slot] != 0) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = mTags[i];
+                mValues[slot] = i;
+            }
+        }
+    }
+
+    private static int hash(int tag) {
+        return tag * 0x9E3779B9 >>> 16 ^ tag;
+    }
+
+    int size() {
+        return mTags.length;
+    }
+
+    /**
+     * 返回 tag 对应字段的位置, 没有返回 -1.
+     *
+     * @param last 上一个字段的位置, 没有传 -1. 重复字段一般连续出现, 其余字段按声明顺序出现,
+     *             所以先试 last 和 last + 1.
+     */
+    int find(int tag, int last) {
+        if (last >= 0 && mTags[last] == tag) return last;
+        int next = last + 1;
+        if (next < mTags.length && mTags[next] == tag) return next;
+        return find(tag);
+    }
+
+    int find(int tag) {
+        if (mDense != null) {
+            return tag < mDense.length ? mDense[tag] : -1;
+        }
+        int slot = hash(tag) & mMask;
+        while (true) {
+            int key = mKeys[slot];
+            if (key == tag) return mValues[slot];
+            if (key == 0) return -1;
+            slot = (slot + 1) & mMask;
+        }
+    }
+}
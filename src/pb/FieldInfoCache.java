@@ -0,0 +1,131 @@
+package pb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link FieldBuilder} 的 schema 缓存, 线程安全.
+ * <p/>
+ * 容量 <= 0 时不限大小, 用 ConcurrentHashMap, 读不加锁; 否则按 LRU 淘汰.
+ */
+final class FieldInfoCache {
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+    private volatile Map<Class<?>, FieldInfoCacheItem> mItems;
+    private volatile int mCapacity;
+
+    FieldInfoCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    FieldInfoCacheItem get(Class<?> type) {
+        Map<Class<?>, FieldInfoCacheItem> items = mItems;
+        FieldInfoCacheItem item;
+        if (items instanceof ConcurrentHashMap) {
+            item = items.get(type);
+        } else {
+            synchronized (items) {
+                item = items.get(type);
+            }
+        }
+        if (item != null) {
+            mHits.incrementAndGet();
+        } else {
+            mMisses.incrementAndGet();
+        }
+        return item;
+    }
+
+    /**
+     * 放入缓存, 如果别的线程已经放过了, 返回已有的那个.
+     */
+    FieldInfoCacheItem putIfAbsent(FieldInfoCacheItem item) {
+        Map<Class<?>, FieldInfoCacheItem> items = mItems;
+        FieldInfoCacheItem old;
+        if (items instanceof ConcurrentHashMap) {
+            old = ((ConcurrentHashMap<Class<?>, FieldInfoCacheItem>) items).putIfAbsent(item.mClass, item);
+        } else {
+            synchronized (items) {
+                old = items.get(item.mClass);
+                if (old == null) {
+                    items.put(item.mClass, item);
+                }
+            }
+        }
+        return old != null ? old : item;
+    }
+
+    synchronized void setCapacity(int capacity) {
+        final int max = capacity;
+        Map<Class<?>, FieldInfoCacheItem> items;
+        if (max <= 0) {
+            items = new ConcurrentHashMap<Class<?>, FieldInfoCacheItem>();
+        } else {
+            items = new LinkedHashMap<Class<?>, FieldInfoCacheItem>(16, 0.75f, true) {
+                private static final long serialVersionUID = 2203614781283125085L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Class<?>, FieldInfoCacheItem> eldest) {
+                    if (size() > max) {
+                        mEvictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+        Map<Class<?>, FieldInfoCacheItem> old = mItems;
+        if (old != null) {
+            synchronized (old) {
+                for (FieldInfoCacheItem item : old.values()) {
+                    putInto(items, item);
+                }
+            }
+        }
+        mCapacity = capacity;
+        mItems = items;
+    }
+
+    private static void putInto(Map<Class<?>, FieldInfoCacheItem> items, FieldInfoCacheItem item) {
+        if (items instanceof ConcurrentHashMap) {
+            items.put(item.mClass, item);
+        } else {
+            synchronized (items) {
+                items.put(item.mClass, item);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        Map<Class<?>, FieldInfoCacheItem> items = mItems;
+        synchronized (items) {
+            items.clear();
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    int size() {
+        Map<Class<?>, FieldInfoCacheItem> items = mItems;
+        synchronized (items) {
+            return items.size();
+        }
+    }
+
+    long getHitCount() {
+        return mHits.get();
+    }
+
+    long getMissCount() {
+        return mMisses.get();
+    }
+
+    long getEvictionCount() {
+        return mEvictions.get();
+    }
+}
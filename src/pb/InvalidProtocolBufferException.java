@@ -35,17 +35,56 @@ import java.io.IOException;
 /**
  * Thrown when a protocol message being parsed is invalid in some way,
  * e.g. it contains a malformed varint or a negative byte length.
+ * <p/>
+ * The stack trace is not captured unless the {@code pb.stacktrace} system
+ * property is {@code true}, so that a stream of corrupt input costs no more
+ * than an allocation per failure. {@link #getFieldPath()} tells where in the
+ * message the failure happened instead.
  *
  * @author kenton@google.com Kenton Varda
  */
 public class InvalidProtocolBufferException extends IOException {
     private static final long serialVersionUID = -1616151763072450476L;
+    static final boolean STACK_TRACES = Boolean.getBoolean("pb.stacktrace");
     private PBMessage<?> unfinishedMessage = null;
+    private String fieldPath = null;
 
     public InvalidProtocolBufferException(final String description) {
         super(description);
     }
 
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return STACK_TRACES ? super.fillInStackTrace() : this;
+    }
+
+    @Override
+    public String getMessage() {
+        final String message = super.getMessage();
+        return fieldPath == null ? message : message + " (at " + fieldPath + ")";
+    }
+
+    /**
+     * Returns the dotted path of java field names, starting with the class of
+     * the outermost message, that was being read or written when this was
+     * thrown, e.g. {@code "Foo.mChild.mName"}; or null if unknown.
+     */
+    public String getFieldPath() {
+        return fieldPath;
+    }
+
+    /**
+     * Prepends {@code name} to the field path while the exception unwinds
+     * through enclosing messages. Public only so that generated codecs in
+     * other packages can call it.
+     *
+     * @return this
+     */
+    public InvalidProtocolBufferException addFieldPath(final String name) {
+        fieldPath = fieldPath == null ? name : name + "." + fieldPath;
+        return this;
+    }
+
     static InvalidProtocolBufferException truncatedMessage() {
         return new InvalidProtocolBufferException(
                 "While parsing a protocol message, the input ended unexpectedly " +
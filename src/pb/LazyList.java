@@ -0,0 +1,75 @@
+package pb;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * 延迟解析模式下 repeated 字段用的 List, 元素先存成 {@link LazySlice}, 第一次 {@link #get} 时才解析.
+ * 见 {@link PBMessage#setLazyParsing(boolean)}.
+ */
+final class LazyList<E> extends AbstractList<E> implements RandomAccess {
+    private final ArrayList<Object> mItems;
+
+    LazyList(Collection<? extends E> items) {
+        mItems = items != null ? new ArrayList<Object>(items) : new ArrayList<Object>();
+    }
+
+    void addSlice(LazySlice slice) {
+        mItems.add(slice);
+    }
+
+    /**
+     * 返回第 {@code index} 个元素, 还没解析的返回 {@link LazySlice}, 序列化时直接写原始字节.
+     */
+    Object getRaw(int index) {
+        return mItems.get(index);
+    }
+
+    /**
+     * @throws LazyParseException 元素的数据有错
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        Object item = mItems.get(index);
+        if (item instanceof LazySlice) {
+            item = ((LazySlice) item).decode();
+            mItems.set(index, item);
+        }
+        return (E) item;
+    }
+
+    @Override
+    public int size() {
+        return mItems.size();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E old = get(index);
+        mItems.set(index, element);
+        return old;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        mItems.add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = get(index);
+        mItems.remove(index);
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        mItems.clear();
+        modCount++;
+    }
+}
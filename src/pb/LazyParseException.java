@@ -0,0 +1,20 @@
+package pb;
+
+import java.io.IOException;
+
+/**
+ * 延迟解析的字段在第一次访问时才解析, 那时出错抛这个异常; {@link PBLazy#get()} 和 {@link java.util.List#get}
+ * 不能抛 checked 异常, 原来的 {@link IOException} 见 {@link #getCause()}. 出错的元素仍然没有解析, 再访问会再抛.
+ */
+public class LazyParseException extends RuntimeException {
+    private static final long serialVersionUID = 4151462135816493621L;
+
+    LazyParseException(IOException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+        return (IOException) super.getCause();
+    }
+}
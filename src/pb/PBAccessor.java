@@ -0,0 +1,230 @@
+package pb;
+
+import java.lang.reflect.Field;
+
+/**
+ * 读写某个 {@link PBInfo} 对应字段的访问器, 由 {@link FieldBuilder} 按 {@link Strategy} 为每个字段创建一次.
+ * <p/>
+ * {@link Strategy#TYPED} 按字段的 java 类型选择专门的实现, 基本类型字段走 {@code Field.getInt/setInt} 等,
+ * 调用点只会看到一个固定的实现类; {@link Strategy#REFLECTION} 统一走 {@code Field.get/set}, 作为对照和回退.
+ * 完全不经过反射的路径见 {@link PBCodec}.
+ */
+public abstract class PBAccessor {
+    public enum Strategy {
+        REFLECTION,
+        TYPED,
+    }
+
+    protected final Field mField;
+
+    protected PBAccessor(Field field) {
+        mField = field;
+    }
+
+    static PBAccessor create(Field field, Strategy strategy) {
+        if (strategy == Strategy.TYPED) {
+            Class<?> type = field.getType();
+            if (type == Integer.TYPE) return new IntAccessor(field);
+            else if (type == Long.TYPE) return new LongAccessor(field);
+            else if (type == Float.TYPE) return new FloatAccessor(field);
+            else if (type == Double.TYPE) return new DoubleAccessor(field);
+            else if (type == Boolean.TYPE) return new BooleanAccessor(field);
+        }
+        return new ReflectionAccessor(field);
+    }
+
+    public Field getField() {
+        return mField;
+    }
+
+    public abstract Object get(Object target) throws IllegalAccessException;
+
+    public abstract void set(Object target, Object value) throws IllegalAccessException;
+
+    public int getInt(Object target) throws IllegalAccessException {
+        return ((Number) get(target)).intValue();
+    }
+
+    public void setInt(Object target, int value) throws IllegalAccessException {
+        set(target, value);
+    }
+
+    public long getLong(Object target) throws IllegalAccessException {
+        return ((Number) get(target)).longValue();
+    }
+
+    public void setLong(Object target, long value) throws IllegalAccessException {
+        set(target, value);
+    }
+
+    public float getFloat(Object target) throws IllegalAccessException {
+        return ((Number) get(target)).floatValue();
+    }
+
+    public void setFloat(Object target, float value) throws IllegalAccessException {
+        set(target, value);
+    }
+
+    public double getDouble(Object target) throws IllegalAccessException {
+        return ((Number) get(target)).doubleValue();
+    }
+
+    public void setDouble(Object target, double value) throws IllegalAccessException {
+        set(target, value);
+    }
+
+    public boolean getBoolean(Object target) throws IllegalAccessException {
+        return (Boolean) get(target);
+    }
+
+    public void setBoolean(Object target, boolean value) throws IllegalAccessException {
+        set(target, value);
+    }
+}
+
+class ReflectionAccessor extends PBAccessor {
+    ReflectionAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.get(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        mField.set(target, value);
+    }
+}
+
+final class IntAccessor extends PBAccessor {
+    IntAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.getInt(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        mField.setInt(target, ((Number) value).intValue());
+    }
+
+    @Override
+    public int getInt(Object target) throws IllegalAccessException {
+        return mField.getInt(target);
+    }
+
+    @Override
+    public void setInt(Object target, int value) throws IllegalAccessException {
+        mField.setInt(target, value);
+    }
+}
+
+final class LongAccessor extends PBAccessor {
+    LongAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.getLong(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        // UINT32 读出来是 Integer, 这里统一按 Number 处理
+        mField.setLong(target, ((Number) value).longValue());
+    }
+
+    @Override
+    public long getLong(Object target) throws IllegalAccessException {
+        return mField.getLong(target);
+    }
+
+    @Override
+    public void setLong(Object target, long value) throws IllegalAccessException {
+        mField.setLong(target, value);
+    }
+}
+
+final class FloatAccessor extends PBAccessor {
+    FloatAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.getFloat(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        mField.setFloat(target, ((Number) value).floatValue());
+    }
+
+    @Override
+    public float getFloat(Object target) throws IllegalAccessException {
+        return mField.getFloat(target);
+    }
+
+    @Override
+    public void setFloat(Object target, float value) throws IllegalAccessException {
+        mField.setFloat(target, value);
+    }
+}
+
+final class DoubleAccessor extends PBAccessor {
+    DoubleAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.getDouble(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        mField.setDouble(target, ((Number) value).doubleValue());
+    }
+
+    @Override
+    public double getDouble(Object target) throws IllegalAccessException {
+        return mField.getDouble(target);
+    }
+
+    @Override
+    public void setDouble(Object target, double value) throws IllegalAccessException {
+        mField.setDouble(target, value);
+    }
+}
+
+final class BooleanAccessor extends PBAccessor {
+    BooleanAccessor(Field field) {
+        super(field);
+    }
+
+    @Override
+    public Object get(Object target) throws IllegalAccessException {
+        return mField.getBoolean(target);
+    }
+
+    @Override
+    public void set(Object target, Object value) throws IllegalAccessException {
+        mField.setBoolean(target, (Boolean) value);
+    }
+
+    @Override
+    public boolean getBoolean(Object target) throws IllegalAccessException {
+        return mField.getBoolean(target);
+    }
+
+    @Override
+    public void setBoolean(Object target, boolean value) throws IllegalAccessException {
+        mField.setBoolean(target, value);
+    }
+}
@@ -0,0 +1,72 @@
+package pb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * direct {@link ByteBuffer} 池, 给 {@link PBCodedOutputStream#newInstance(PBBufferPool, int)} 扩容用, 线程安全.
+ * <p/>
+ * 容量按 2 的幂分档, 每档最多留 {@code maxPerSize} 个, 多出来的交给 GC.
+ */
+public final class PBBufferPool {
+    public static final int DEFAULT_MAX_PER_SIZE = 4;
+    private static final int MIN_SHIFT = 12;
+    private static final int MAX_SHIFT = 30;
+
+    private final int mMaxPerSize;
+    private final ArrayList<ArrayList<ByteBuffer>> mFree;
+
+    public PBBufferPool() {
+        this(DEFAULT_MAX_PER_SIZE);
+    }
+
+    public PBBufferPool(int maxPerSize) {
+        mMaxPerSize = maxPerSize;
+        mFree = new ArrayList<ArrayList<ByteBuffer>>(MAX_SHIFT - MIN_SHIFT + 1);
+        for (int i = MIN_SHIFT; i <= MAX_SHIFT; i++) {
+            mFree.add(new ArrayList<ByteBuffer>());
+        }
+    }
+
+    /**
+     * 取一个容量不小于 {@code minCapacity} 的 direct buffer, position 为 0, limit 为 capacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        final int shift = shiftFor(minCapacity);
+        final ArrayList<ByteBuffer> free = mFree.get(shift - MIN_SHIFT);
+        synchronized (free) {
+            final int size = free.size();
+            if (size > 0) {
+                final ByteBuffer buffer = free.remove(size - 1);
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(1 << shift);
+    }
+
+    /**
+     * 归还 {@link #acquire} 得到的 buffer, 之后调用者不能再用它. 不是从池里取出来的 buffer 直接丢掉.
+     */
+    public void release(ByteBuffer buffer) {
+        final int capacity = buffer.capacity();
+        if (!buffer.isDirect() || Integer.bitCount(capacity) != 1
+                || capacity < (1 << MIN_SHIFT) || capacity > (1 << MAX_SHIFT)) {
+            return;
+        }
+        final ArrayList<ByteBuffer> free = mFree.get(Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT);
+        synchronized (free) {
+            if (free.size() < mMaxPerSize) {
+                free.add(buffer);
+            }
+        }
+    }
+
+    private static int shiftFor(int capacity) {
+        if (capacity > (1 << MAX_SHIFT)) {
+            throw new IllegalArgumentException("capacity too large: " + capacity);
+        }
+        final int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(shift, MIN_SHIFT);
+    }
+}
@@ -0,0 +1,42 @@
+package pb;
+
+import java.io.IOException;
+
+/**
+ * 某个 {@link ClassDef} 类型的专用编解码器.
+ * <p/>
+ * 由 {@code pb.processor.PBCodecProcessor} 在编译期为每个 {@link ClassDef} 类生成,
+ * 类名为 {@code 原类名 + FieldBuilder.CODEC_SUFFIX}, 与原类同包. 生成的代码直接访问字段,
+ * 不经过反射也不装箱. {@link PBMessage} 找到生成的 codec 时会自动使用, 否则回退到反射.
+ * <p/>
+ * 实现不保存状态, 可以在多个线程之间共享, 用 {@link FieldBuilder#getCodec(Class)} 取.
+ */
+public interface PBCodec<T> {
+    /**
+     * 计算 {@code object} 序列化后的字节数, 不包括外层的 tag 和长度.
+     */
+    int size(T object) throws InvalidProtocolBufferException;
+
+    /**
+     * 同 {@link #size(Object)}, {@code sizes} 不为null时按先序记下每个嵌套message的长度.
+     * 实现把 {@code sizes} 原样传给 {@link PBCodedOutputStream#computeMessageSize(int, PBCodec, Object, MessageSizes)},
+     * 写的时候 {@link PBCodedOutputStream#writeMessage(int, PBCodec, Object)} 按同样的顺序取出来, 每层只算一次.
+     */
+    int size(T object, MessageSizes sizes) throws InvalidProtocolBufferException;
+
+    /**
+     * 把 {@code object} 的所有字段写到 {@code output}. {@code output} 上有 {@link #size(Object, MessageSizes)}
+     * 记下的长度时嵌套message按顺序使用.
+     */
+    void encode(T object, PBCodedOutputStream output) throws IOException;
+
+    /**
+     * 从 {@code input} 读取字段, 合并到 {@code object}, 直到读到结尾或当前 limit.
+     */
+    void merge(T object, PBCodedInputStream input) throws IOException;
+
+    /**
+     * 创建一个新对象, 从 {@code input} 读取字段, 直到读到结尾或当前 limit.
+     */
+    T decode(PBCodedInputStream input) throws IOException;
+}
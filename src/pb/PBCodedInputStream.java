@@ -32,6 +32,7 @@ package pb;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -50,7 +51,7 @@ import java.util.List;
 public final class PBCodedInputStream {
     private static final int DEFAULT_RECURSION_LIMIT = 64;
     private int recursionLimit = DEFAULT_RECURSION_LIMIT;
-    private static final int DEFAULT_SIZE_LIMIT = 64 << 20;  // 64MB
+    static final int DEFAULT_SIZE_LIMIT = 64 << 20;  // 64MB
 
 
     // -----------------------------------------------------------------
@@ -59,8 +60,15 @@ public final class PBCodedInputStream {
      */
     private int sizeLimit = DEFAULT_SIZE_LIMIT;
     private static final int BUFFER_SIZE = 4096;
+    private static final int CHAR_BUFFER_SIZE = 64;
+    private static final int LITTLE_ENDIAN_32_SIZE = 4;
+    private static final int LITTLE_ENDIAN_64_SIZE = 8;
     private final byte[] buffer;
+    // readString 解码用, 按需分配
+    private char[] charBuffer;
     private final InputStream input;
+    // 没有数组的 ByteBuffer (direct, mmap), 每次 refill 批量拷一段到 buffer
+    private final ByteBuffer byteBufferInput;
 
     // -----------------------------------------------------------------
     private int bufferSize;
@@ -90,6 +98,7 @@ public final class PBCodedInputStream {
         bufferPos = off;
         totalBytesRetired = -off;
         input = null;
+        byteBufferInput = null;
     }
 
     private PBCodedInputStream(final InputStream input) {
@@ -98,6 +107,16 @@ public final class PBCodedInputStream {
         bufferPos = 0;
         totalBytesRetired = 0;
         this.input = input;
+        byteBufferInput = null;
+    }
+
+    private PBCodedInputStream(final ByteBuffer byteBuffer) {
+        buffer = new byte[Math.max(1, Math.min(BUFFER_SIZE, byteBuffer.remaining()))];
+        bufferSize = 0;
+        bufferPos = 0;
+        totalBytesRetired = 0;
+        input = null;
+        byteBufferInput = byteBuffer;
     }
 
     /**
@@ -140,6 +159,27 @@ public final class PBCodedInputStream {
         return result;
     }
 
+    /**
+     * Create a new PBCodedInputStream reading the remaining bytes of the given
+     * {@code ByteBuffer}.  The buffer's position is not changed.  Heap buffers
+     * are read in place; direct and memory-mapped buffers are read through a
+     * small internal window with bulk gets, never copied as a whole.
+     */
+    public static PBCodedInputStream newInstance(final ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return newInstance(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        }
+        final ByteBuffer source = buf.duplicate();
+        final PBCodedInputStream result = new PBCodedInputStream(source);
+        try {
+            // See newInstance(byte[], int, int).
+            result.pushLimit(source.remaining());
+        } catch (InvalidProtocolBufferException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+        return result;
+    }
+
     /**
      * Reads a varint from the input one byte at a time, so that it does not
      * read any bytes after the end of the varint.  If you simply wrapped the
@@ -366,30 +406,73 @@ public final class PBCodedInputStream {
      */
     public String readString() throws IOException {
         final int size = readRawVarint32();
-        if (size <= (bufferSize - bufferPos) && size > 0) {
+        if (size == 0) {
+            return "";
+        } else if (size <= (bufferSize - bufferPos) && size > 0) {
             // Fast path:  We already have the bytes in a contiguous buffer, so
-            //   just copy directly from it.
-            final String result = new String(buffer, bufferPos, size, "UTF-8");
+            //   just decode directly from it.
+            final String result = decodeUtf8(buffer, bufferPos, size);
             bufferPos += size;
             return result;
         } else {
-            // Slow path:  Build a byte array first then copy it.
-            return new String(readRawBytes(size), "UTF-8");
+            // Slow path:  Build a byte array first then decode it.
+            return decodeUtf8(readRawBytes(size), 0, size);
         }
     }
 
+    private String decodeUtf8(final byte[] bytes, final int offset, final int size) {
+        char[] chars = charBuffer;
+        if (chars == null || chars.length < size) {
+            // 复用同一个char[], 只有碰到更长的字符串才扩容
+            chars = new char[Math.max(size, CHAR_BUFFER_SIZE)];
+            charBuffer = chars;
+        }
+        final int count = Utf8.decode(bytes, offset, size, chars);
+        return new String(chars, 0, count);
+    }
+
     /**
      * Read an embedded message field tag from the stream.
      */
     public void readMessage(final PBMessage<?> msg)
             throws IOException {
+        readMessage(msg, null);
+    }
+
+    /**
+     * 同 {@link #readMessage(PBMessage)}, 只解析 {@code mask} 选中的字段.
+     */
+    void readMessage(final PBMessage<?> msg, final PBFieldMask mask)
+            throws IOException {
+        final int oldLimit = enterMessage();
+        msg.parse(this, mask);
+        exitMessage(oldLimit);
+    }
+
+    /**
+     * 用 {@code codec} 读一个嵌套 message, 返回新创建的对象. 不创建 {@link PBMessage}.
+     */
+    public <T> T readMessage(final PBCodec<T> codec) throws IOException {
+        final int oldLimit = enterMessage();
+        final T value = codec.decode(this);
+        exitMessage(oldLimit);
+        return value;
+    }
+
+    /**
+     * 读嵌套 message 的长度并 push limit, 返回给 {@link #exitMessage} 的旧 limit.
+     */
+    int enterMessage() throws IOException {
         final int length = readRawVarint32();
         if (recursionDepth >= recursionLimit) {
             throw InvalidProtocolBufferException.recursionLimitExceeded();
         }
         final int oldLimit = pushLimit(length);
         ++recursionDepth;
-        msg.parse(this);
+        return oldLimit;
+    }
+
+    void exitMessage(final int oldLimit) throws InvalidProtocolBufferException {
         checkLastTagWas(0);
         --recursionDepth;
         popLimit(oldLimit);
@@ -414,6 +497,27 @@ public final class PBCodedInputStream {
         }
     }
 
+    /**
+     * 读一个 length-delimited 的值但不解析, 给延迟解析用. 输入本身是 byte 数组时直接引用原数组, 否则复制出来.
+     */
+    LazySlice readSlice(final PBWireFormat.FieldType type, final Class<?> cls, final int polymTag,
+                        final boolean lazy) throws IOException {
+        final int size = readRawVarint32();
+        if (input == null && byteBufferInput == null && size >= 0 && size <= (bufferSize - bufferPos)) {
+            final LazySlice slice = new LazySlice(buffer, bufferPos, size, type, cls, polymTag, lazy);
+            bufferPos += size;
+            return slice;
+        }
+        return new LazySlice(readRawBytes(size), 0, size, type, cls, polymTag, lazy);
+    }
+
+    /**
+     * Read a {@code bytes} field value from the stream as a {@code byte[]}.
+     */
+    public byte[] readByteArray() throws IOException {
+        return readRawBytes(readRawVarint32());
+    }
+
     /**
      * Read a {@code uint32} field tag from the stream.
      */
@@ -473,6 +577,20 @@ public final class PBCodedInputStream {
                 return readUInt32();
             case BOOL:
                 return readBool();
+            case FIXED64:
+                return readFixed64();
+            case FIXED32:
+                return readFixed32();
+            case ENUM:
+                return readEnum();
+            case SFIXED32:
+                return readSFixed32();
+            case SFIXED64:
+                return readSFixed64();
+            case SINT32:
+                return readSInt32();
+            case SINT64:
+                return readSInt64();
             case STRING:
                 return readString();
             case BYTES:
@@ -482,11 +600,230 @@ public final class PBCodedInputStream {
         }
     }
 
+    /**
+     * 读一段 packed 编码的 repeated 数值字段, 元素依次加到 {@code list}.
+     */
+    void readPackedField(final PBWireFormat.FieldType fieldType, final List<Object> list) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        while (getBytesUntilLimit() > 0) {
+            list.add(readField(fieldType));
+        }
+        popLimit(oldLimit);
+    }
+
+    /**
+     * 读一段 packed 编码的基本类型数组字段, 按类型展开成单独的循环, 不装箱.
+     */
+    void readPackedArray(final PBWireFormat.FieldType fieldType, final ArrayBuilder builder) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        switch (fieldType) {
+            case DOUBLE:
+                builder.ensure(length / LITTLE_ENDIAN_64_SIZE);
+                while (getBytesUntilLimit() > 0) {
+                    builder.addDouble(readDouble());
+                }
+                break;
+            case FLOAT:
+                builder.ensure(length / LITTLE_ENDIAN_32_SIZE);
+                while (getBytesUntilLimit() > 0) {
+                    builder.addFloat(readFloat());
+                }
+                break;
+            case FIXED64:
+            case SFIXED64:
+                builder.ensure(length / LITTLE_ENDIAN_64_SIZE);
+                while (getBytesUntilLimit() > 0) {
+                    builder.addLong(readRawLittleEndian64());
+                }
+                break;
+            case FIXED32:
+            case SFIXED32:
+                builder.ensure(length / LITTLE_ENDIAN_32_SIZE);
+                while (getBytesUntilLimit() > 0) {
+                    builder.addInt(readRawLittleEndian32());
+                }
+                break;
+            case BOOL:
+                builder.ensure(length);
+                while (getBytesUntilLimit() > 0) {
+                    builder.addBoolean(readBool());
+                }
+                break;
+            case INT32:
+            case ENUM:
+                while (getBytesUntilLimit() > 0) {
+                    builder.addInt(readRawVarint32());
+                }
+                break;
+            case SINT32:
+                while (getBytesUntilLimit() > 0) {
+                    builder.addInt(readSInt32());
+                }
+                break;
+            case INT64:
+            case UINT64:
+                while (getBytesUntilLimit() > 0) {
+                    builder.addLong(readRawVarint64());
+                }
+                break;
+            case SINT64:
+                while (getBytesUntilLimit() > 0) {
+                    builder.addLong(readSInt64());
+                }
+                break;
+            case UINT32:
+                while (getBytesUntilLimit() > 0) {
+                    builder.addLong(readUInt32());
+                }
+                break;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+        popLimit(oldLimit);
+    }
+
+    /**
+     * 读基本类型数组字段的一个元素 (不 packed 的编码).
+     */
+    void readArrayElement(final PBWireFormat.FieldType fieldType, final ArrayBuilder builder) throws IOException {
+        switch (fieldType) {
+            case DOUBLE:
+                builder.addDouble(readDouble());
+                break;
+            case FLOAT:
+                builder.addFloat(readFloat());
+                break;
+            case FIXED64:
+            case SFIXED64:
+                builder.addLong(readRawLittleEndian64());
+                break;
+            case FIXED32:
+            case SFIXED32:
+                builder.addInt(readRawLittleEndian32());
+                break;
+            case BOOL:
+                builder.addBoolean(readBool());
+                break;
+            case INT32:
+            case ENUM:
+                builder.addInt(readRawVarint32());
+                break;
+            case SINT32:
+                builder.addInt(readSInt32());
+                break;
+            case INT64:
+            case UINT64:
+                builder.addLong(readRawVarint64());
+                break;
+            case SINT64:
+                builder.addLong(readSInt64());
+                break;
+            case UINT32:
+                builder.addLong(readUInt32());
+                break;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
+    /**
+     * 读基本类型字段, 通过 {@link PBAccessor} 直接写回 {@code target}, 不装箱.
+     * 只能用于 {@link PBInfo#mPrimitive} 为 true 的字段.
+     */
+    void readPrimitiveField(final PBInfo info, final Object target)
+            throws IOException, IllegalAccessException {
+        final PBAccessor accessor = info.mAccessor;
+        switch (info.mType) {
+            case DOUBLE:
+                accessor.setDouble(target, readDouble());
+                break;
+            case FLOAT:
+                accessor.setFloat(target, readFloat());
+                break;
+            case INT64:
+                accessor.setLong(target, readInt64());
+                break;
+            case UINT64:
+                accessor.setLong(target, readUInt64());
+                break;
+            case INT32:
+                accessor.setInt(target, readInt32());
+                break;
+            case UINT32:
+                accessor.setLong(target, readUInt32());
+                break;
+            case BOOL:
+                accessor.setBoolean(target, readBool());
+                break;
+            case FIXED64:
+                accessor.setLong(target, readFixed64());
+                break;
+            case FIXED32:
+                accessor.setInt(target, readFixed32());
+                break;
+            case ENUM:
+                accessor.setInt(target, readEnum());
+                break;
+            case SFIXED32:
+                accessor.setInt(target, readSFixed32());
+                break;
+            case SFIXED64:
+                accessor.setLong(target, readSFixed64());
+                break;
+            case SINT32:
+                accessor.setInt(target, readSInt32());
+                break;
+            case SINT64:
+                accessor.setLong(target, readSInt64());
+                break;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
     /**
      * Read a raw Varint from the stream.  If larger than 32 bits, discard the
      * upper bits.
      */
     public int readRawVarint32() throws IOException {
+        // Fast path:  the whole varint is in the buffer, decode without
+        //   per-byte bounds checks.
+        fastpath:
+        {
+            int pos = bufferPos;
+            if (bufferSize == pos) break fastpath;
+            final byte[] buf = buffer;
+            int x;
+            if ((x = buf[pos++]) >= 0) {
+                bufferPos = pos;
+                return x;
+            } else if (bufferSize - pos < 9) {
+                break fastpath;
+            } else if ((x ^= (buf[pos++] << 7)) < 0) {
+                x ^= (~0 << 7);
+            } else if ((x ^= (buf[pos++] << 14)) >= 0) {
+                x ^= (~0 << 7) ^ (~0 << 14);
+            } else if ((x ^= (buf[pos++] << 21)) < 0) {
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21);
+            } else {
+                final int y = buf[pos++];
+                x ^= y << 28;
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21) ^ (~0 << 28);
+                if (y < 0 && buf[pos++] < 0 && buf[pos++] < 0 && buf[pos++] < 0
+                        && buf[pos++] < 0 && buf[pos++] < 0) {
+                    // Malformed, let the slow path throw.
+                    break fastpath;
+                }
+            }
+            bufferPos = pos;
+            return x;
+        }
+        return readRawVarint32SlowPath();
+    }
+
+    private int readRawVarint32SlowPath() throws IOException {
         byte tmp = readRawByte();
         if (tmp >= 0) {
             return tmp;
@@ -524,6 +861,50 @@ public final class PBCodedInputStream {
      * Read a raw Varint from the stream.
      */
     public long readRawVarint64() throws IOException {
+        // Fast path:  see readRawVarint32().
+        fastpath:
+        {
+            int pos = bufferPos;
+            if (bufferSize == pos) break fastpath;
+            final byte[] buf = buffer;
+            long x;
+            int y;
+            if ((y = buf[pos++]) >= 0) {
+                bufferPos = pos;
+                return y;
+            } else if (bufferSize - pos < 9) {
+                break fastpath;
+            } else if ((y ^= (buf[pos++] << 7)) < 0) {
+                x = y ^ (~0 << 7);
+            } else if ((y ^= (buf[pos++] << 14)) >= 0) {
+                x = y ^ ((~0 << 7) ^ (~0 << 14));
+            } else if ((y ^= (buf[pos++] << 21)) < 0) {
+                x = y ^ ((~0 << 7) ^ (~0 << 14) ^ (~0 << 21));
+            } else if ((x = y ^ ((long) buf[pos++] << 28)) >= 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28);
+            } else if ((x ^= ((long) buf[pos++] << 35)) < 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35);
+            } else if ((x ^= ((long) buf[pos++] << 42)) >= 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42);
+            } else if ((x ^= ((long) buf[pos++] << 49)) < 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42)
+                        ^ (~0L << 49);
+            } else {
+                x ^= ((long) buf[pos++] << 56);
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42)
+                        ^ (~0L << 49) ^ (~0L << 56);
+                if (x < 0L && buf[pos++] < 0L) {
+                    // Malformed, let the slow path throw.
+                    break fastpath;
+                }
+            }
+            bufferPos = pos;
+            return x;
+        }
+        return readRawVarint64SlowPath();
+    }
+
+    private long readRawVarint64SlowPath() throws IOException {
         int shift = 0;
         long result = 0;
         while (shift < 64) {
@@ -541,6 +922,15 @@ public final class PBCodedInputStream {
      * Read a 32-bit little-endian integer from the stream.
      */
     public int readRawLittleEndian32() throws IOException {
+        final int pos = bufferPos;
+        if (bufferSize - pos >= LITTLE_ENDIAN_32_SIZE) {
+            final byte[] buf = buffer;
+            bufferPos = pos + LITTLE_ENDIAN_32_SIZE;
+            return (((int) buf[pos] & 0xff)) |
+                    (((int) buf[pos + 1] & 0xff) << 8) |
+                    (((int) buf[pos + 2] & 0xff) << 16) |
+                    (((int) buf[pos + 3] & 0xff) << 24);
+        }
         final byte b1 = readRawByte();
         final byte b2 = readRawByte();
         final byte b3 = readRawByte();
@@ -555,6 +945,19 @@ public final class PBCodedInputStream {
      * Read a 64-bit little-endian integer from the stream.
      */
     public long readRawLittleEndian64() throws IOException {
+        final int pos = bufferPos;
+        if (bufferSize - pos >= LITTLE_ENDIAN_64_SIZE) {
+            final byte[] buf = buffer;
+            bufferPos = pos + LITTLE_ENDIAN_64_SIZE;
+            return (((long) buf[pos] & 0xff)) |
+                    (((long) buf[pos + 1] & 0xff) << 8) |
+                    (((long) buf[pos + 2] & 0xff) << 16) |
+                    (((long) buf[pos + 3] & 0xff) << 24) |
+                    (((long) buf[pos + 4] & 0xff) << 32) |
+                    (((long) buf[pos + 5] & 0xff) << 40) |
+                    (((long) buf[pos + 6] & 0xff) << 48) |
+                    (((long) buf[pos + 7] & 0xff) << 56);
+        }
         final byte b1 = readRawByte();
         final byte b2 = readRawByte();
         final byte b3 = readRawByte();
@@ -734,7 +1137,7 @@ public final class PBCodedInputStream {
         totalBytesRetired += bufferSize;
 
         bufferPos = 0;
-        bufferSize = (input == null) ? -1 : input.read(buffer);
+        bufferSize = readFromSource(buffer, 0, buffer.length);
         if (bufferSize == 0 || bufferSize < -1) {
             throw new IllegalStateException(
                     "InputStream#read(byte[]) returned invalid result: " + bufferSize +
@@ -752,13 +1155,34 @@ public final class PBCodedInputStream {
             recomputeBufferSizeAfterLimit();
             final int totalBytesRead =
                     totalBytesRetired + bufferSize + bufferSizeAfterLimit;
-            if (totalBytesRead > sizeLimit || totalBytesRead < 0) {
+            // Like a byte array, a ByteBuffer's size is known up front, so the
+            // size limit only applies to InputStreams.
+            if (input != null && (totalBytesRead > sizeLimit || totalBytesRead < 0)) {
                 throw InvalidProtocolBufferException.sizeLimitExceeded();
             }
             return true;
         }
     }
 
+    /**
+     * Reads up to {@code length} bytes from the underlying InputStream or
+     * ByteBuffer.  Returns -1 at the end, or if reading from a flat array.
+     */
+    private int readFromSource(final byte[] target, final int offset, final int length) throws IOException {
+        if (input != null) {
+            return input.read(target, offset, length);
+        }
+        if (byteBufferInput != null) {
+            final int n = Math.min(length, byteBufferInput.remaining());
+            if (n == 0) {
+                return -1;
+            }
+            byteBufferInput.get(target, offset, n);
+            return n;
+        }
+        return -1;
+    }
+
     /**
      * Read one byte from the input.
      *
@@ -849,8 +1273,7 @@ public final class PBCodedInputStream {
                 final byte[] chunk = new byte[Math.min(sizeLeft, BUFFER_SIZE)];
                 int pos = 0;
                 while (pos < chunk.length) {
-                    final int n = (input == null) ? -1 :
-                            input.read(chunk, pos, chunk.length - pos);
+                    final int n = readFromSource(chunk, pos, chunk.length - pos);
                     if (n == -1) {
                         throw InvalidProtocolBufferException.truncatedMessage();
                     }
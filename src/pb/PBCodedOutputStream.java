@@ -33,7 +33,10 @@ package pb;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Encodes and writes protocol message fields.
@@ -56,14 +59,32 @@ public final class PBCodedOutputStream {
     public static final int DEFAULT_BUFFER_SIZE = 4096;
     public static final int LITTLE_ENDIAN_32_SIZE = 4;
     public static final int LITTLE_ENDIAN_64_SIZE = 8;
+    // map entry 里 key 的 tag, 都只占一个字节
+    private static final int MAP_KEY_TAG_VARINT =
+            PBWireFormat.makeTag(PBWireFormat.MAP_KEY_FIELD_NUMBER, PBWireFormat.WIRETYPE_VARINT);
+    private static final int MAP_KEY_TAG_LENGTH_DELIMITED =
+            PBWireFormat.makeTag(PBWireFormat.MAP_KEY_FIELD_NUMBER, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
     private final byte[] buffer;
     private final int limit;
     private final OutputStream output;
+    // 写到 ByteBuffer 时的目标. 有数组的直接写在数组上 (byteBufferInPlace),
+    // 否则 buffer 作为窗口, 满了批量 put 过去
+    private ByteBuffer byteBufferOutput;
+    private final boolean byteBufferInPlace;
+    // 不为 null 时 byteBufferOutput 写满了从这里换一个更大的
+    private final PBBufferPool byteBufferPool;
     private int position;
+    // 当前正在写的message树的嵌套长度, 见 MessageSizes
+    private MessageSizes messageSizes;
+    // 写完一棵树之后留着下次复用
+    private MessageSizes spareMessageSizes;
 
     private PBCodedOutputStream(final byte[] buffer, final int offset,
                                 final int length) {
         output = null;
+        byteBufferOutput = null;
+        byteBufferInPlace = false;
+        byteBufferPool = null;
         this.buffer = buffer;
         position = offset;
         limit = offset + length;
@@ -71,11 +92,32 @@ public final class PBCodedOutputStream {
 
     private PBCodedOutputStream(final OutputStream output, final byte[] buffer) {
         this.output = output;
+        byteBufferOutput = null;
+        byteBufferInPlace = false;
+        byteBufferPool = null;
         this.buffer = buffer;
         position = 0;
         limit = buffer.length;
     }
 
+    private PBCodedOutputStream(final ByteBuffer byteBuffer, final PBBufferPool pool) {
+        output = null;
+        byteBufferOutput = byteBuffer;
+        byteBufferPool = pool;
+        if (pool == null && byteBuffer.hasArray()) {
+            byteBufferInPlace = true;
+            buffer = byteBuffer.array();
+            position = byteBuffer.arrayOffset() + byteBuffer.position();
+            limit = byteBuffer.arrayOffset() + byteBuffer.limit();
+        } else {
+            byteBufferInPlace = false;
+            buffer = new byte[pool != null ? DEFAULT_BUFFER_SIZE
+                    : Math.max(1, Math.min(DEFAULT_BUFFER_SIZE, byteBuffer.remaining()))];
+            position = 0;
+            limit = buffer.length;
+        }
+    }
+
     /**
      * Returns the buffer size to efficiently write dataLength bytes to this
      * PBCodedOutputStream. Used by AbstractMessageLite.
@@ -131,6 +173,41 @@ public final class PBCodedOutputStream {
         return new PBCodedOutputStream(flatArray, offset, length);
     }
 
+    /**
+     * Create a new {@code PBCodedOutputStream} that writes to the given
+     * {@code ByteBuffer}, starting at its position.  Heap buffers are written
+     * in place; direct buffers are filled with bulk puts, so the result can be
+     * handed to a channel without another copy.  The buffer's position is
+     * advanced on {@link #flush()}.  If more bytes are written than the buffer
+     * has remaining, {@link OutOfSpaceException} will be thrown.
+     */
+    public static PBCodedOutputStream newInstance(final ByteBuffer byteBuffer) {
+        return new PBCodedOutputStream(byteBuffer, null);
+    }
+
+    /**
+     * Create a new {@code PBCodedOutputStream} that writes to a direct
+     * {@code ByteBuffer} taken from {@code pool}, at least
+     * {@code initialCapacity} bytes large.  When it fills up it is replaced by
+     * a larger one from the pool and the old one is released.  After
+     * {@link #flush()}, {@link #getByteBuffer()} returns the current buffer
+     * with the data in {@code [0, position)}; release it to the pool when
+     * done.
+     */
+    public static PBCodedOutputStream newInstance(final PBBufferPool pool,
+                                                  final int initialCapacity) {
+        return new PBCodedOutputStream(pool.acquire(initialCapacity), pool);
+    }
+
+    /**
+     * Returns the {@code ByteBuffer} being written to, or {@code null} if this
+     * stream does not write to a {@code ByteBuffer}.  Only bytes written
+     * before the last {@link #flush()} are in it.
+     */
+    public ByteBuffer getByteBuffer() {
+        return byteBufferOutput;
+    }
+
     /**
      * Compute the number of bytes that would be needed to encode a
      * {@code double} field, including tag.
@@ -213,14 +290,72 @@ public final class PBCodedOutputStream {
      * embedded message field, including tag.
      */
     public static int computeMessageSize(final int fieldNumber,
-                                         final PBMessage<Object> value) {
+                                         final PBMessage<Object> value) throws InvalidProtocolBufferException {
         return computeTagSize(fieldNumber) + computeMessageSizeNoTag(value);
     }
 
+    static int computeMessageSize(final int fieldNumber,
+                                  final PBMessage<Object> value,
+                                  final MessageSizes sizes) throws InvalidProtocolBufferException {
+        return computeTagSize(fieldNumber) + computeMessageSizeNoTag(value, sizes);
+    }
+
+    /**
+     * 同 {@link #computeMessageSize(int, PBMessage)}, 用 {@code codec} 计算, 不创建 {@link PBMessage}.
+     */
+    public static <T> int computeMessageSize(final int fieldNumber, final PBCodec<T> codec, final T value)
+            throws InvalidProtocolBufferException {
+        return computeTagSize(fieldNumber) + computeMessageSizeNoTag(codec, value, null);
+    }
+
+    /**
+     * 同 {@link #computeMessageSize(int, PBCodec, Object)}, {@code sizes} 不为null时按先序记下长度,
+     * 见 {@link PBCodec#size(Object, MessageSizes)}.
+     */
+    public static <T> int computeMessageSize(final int fieldNumber, final PBCodec<T> codec, final T value,
+                                             final MessageSizes sizes) throws InvalidProtocolBufferException {
+        return computeTagSize(fieldNumber) + computeMessageSizeNoTag(codec, value, sizes);
+    }
+
+    public static <T> int computeDynamicMessageSize(final int fieldNumber, final PBCodec<T> codec, final T value,
+                                                    final int polymTag) throws InvalidProtocolBufferException {
+        return computeDynamicMessageSize(fieldNumber, codec, value, polymTag, null);
+    }
+
+    public static <T> int computeDynamicMessageSize(final int fieldNumber, final PBCodec<T> codec, final T value,
+                                                    final int polymTag, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        return computeTagSize(fieldNumber) + computeInt32SizeNoTag(polymTag) + computeMessageSizeNoTag(codec, value, sizes);
+    }
+
+    /**
+     * 同 {@link #computeMessageSizeNoTag(PBMessage, MessageSizes)}, 用 {@link PBCodec#size(Object, MessageSizes)}
+     * 记下子message的长度.
+     */
+    static <T> int computeMessageSizeNoTag(final PBCodec<T> codec, final T value, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        final int size;
+        if (sizes == null) {
+            size = codec.size(value);
+        } else {
+            final int slot = sizes.reserve();
+            size = codec.size(value, sizes);
+            sizes.set(slot, size);
+        }
+        return computeRawVarint32Size(size) + size;
+    }
+
     public static int computeDynamicMessageSize(final int fieldNumber,
                                                 final PBMessage<Object> value,
-                                                final int polymTag) {
-        return computeTagSize(fieldNumber) + computeInt32SizeNoTag(polymTag) + computeMessageSizeNoTag(value);
+                                                final int polymTag) throws InvalidProtocolBufferException {
+        return computeDynamicMessageSize(fieldNumber, value, polymTag, null);
+    }
+
+    static int computeDynamicMessageSize(final int fieldNumber,
+                                         final PBMessage<Object> value,
+                                         final int polymTag,
+                                         final MessageSizes sizes) throws InvalidProtocolBufferException {
+        return computeTagSize(fieldNumber) + computeInt32SizeNoTag(polymTag) + computeMessageSizeNoTag(value, sizes);
     }
 
     /**
@@ -286,6 +421,11 @@ public final class PBCodedOutputStream {
     }
 
     public static int computeFieldSize(final PBWireFormat.FieldType fieldType, final int fieldNumber, final Object value) throws InvalidProtocolBufferException {
+        return computeFieldSize(fieldType, fieldNumber, value, null);
+    }
+
+    static int computeFieldSize(final PBWireFormat.FieldType fieldType, final int fieldNumber, final Object value,
+                                final MessageSizes sizes) throws InvalidProtocolBufferException {
         if (value == null) return 0;
 
         switch (fieldType) {
@@ -303,12 +443,198 @@ public final class PBCodedOutputStream {
                 return computeUInt32Size(fieldNumber, ((Long) value).intValue());
             case BOOL:
                 return computeBoolSize(fieldNumber, (Boolean) value);
+            case FIXED64:
+                return computeFixed64Size(fieldNumber, (Long) value);
+            case FIXED32:
+                return computeFixed32Size(fieldNumber, (Integer) value);
+            case ENUM:
+                return computeEnumSize(fieldNumber, (Integer) value);
+            case SFIXED32:
+                return computeSFixed32Size(fieldNumber, (Integer) value);
+            case SFIXED64:
+                return computeSFixed64Size(fieldNumber, (Long) value);
+            case SINT32:
+                return computeSInt32Size(fieldNumber, (Integer) value);
+            case SINT64:
+                return computeSInt64Size(fieldNumber, (Long) value);
             case STRING:
                 return computeStringSize(fieldNumber, (String) value);
             case BYTES:
+                if (value instanceof byte[]) {
+                    final int length = ((byte[]) value).length;
+                    return computeTagSize(fieldNumber) + computeRawVarint32Size(length) + length;
+                }
                 return computeBytesSize(fieldNumber, (PBBytes) value);
             case MESSAGE:
-                return computeMessageSize(fieldNumber, new PBMessage<Object>(value));
+                return computeMessageSize(fieldNumber, FieldBuilder.getItem(value.getClass()).getCodec(), value, sizes);
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
+    /**
+     * 计算 packed 编码的 repeated 字段的长度, 包括 tag. {@code sizes} 不为null时记下数据部分的长度,
+     * 写的时候 {@link #writePackedField} 按顺序取出来用, 同嵌套 message 一样.
+     */
+    static int computePackedFieldSize(final PBWireFormat.FieldType fieldType, final int fieldNumber,
+                                      final List<?> values, final MessageSizes sizes) throws InvalidProtocolBufferException {
+        if (values.isEmpty()) return 0;
+        final int dataSize = computePackedDataSize(fieldType, values);
+        if (sizes != null) {
+            sizes.set(sizes.reserve(), dataSize);
+        }
+        return computeTagSize(fieldNumber) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    private static int computePackedDataSize(final PBWireFormat.FieldType fieldType, final List<?> values)
+            throws InvalidProtocolBufferException {
+        int size = 0;
+        for (Object value : values) {
+            if (value == null) continue;
+            switch (fieldType) {
+                case DOUBLE:
+                case FIXED64:
+                case SFIXED64:
+                    size += LITTLE_ENDIAN_64_SIZE;
+                    break;
+                case FLOAT:
+                case FIXED32:
+                case SFIXED32:
+                    size += LITTLE_ENDIAN_32_SIZE;
+                    break;
+                case BOOL:
+                    size += 1;
+                    break;
+                case INT64:
+                    size += computeInt64SizeNoTag((Long) value);
+                    break;
+                case UINT64:
+                    size += computeUInt64SizeNoTag((Long) value);
+                    break;
+                case INT32:
+                    size += computeInt32SizeNoTag((Integer) value);
+                    break;
+                case UINT32:
+                    size += computeUInt32SizeNoTag(((Long) value).intValue());
+                    break;
+                case ENUM:
+                    size += computeEnumSizeNoTag((Integer) value);
+                    break;
+                case SINT32:
+                    size += computeSInt32SizeNoTag((Integer) value);
+                    break;
+                case SINT64:
+                    size += computeSInt64SizeNoTag((Long) value);
+                    break;
+                default:
+                    throw InvalidProtocolBufferException.invalidWireType();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 计算基本类型数组字段 (int[], long[] 等) 的长度, 包括 tag. packed 时同 {@link #computePackedFieldSize}
+     * 记下数据部分的长度.
+     */
+    static int computeArrayFieldSize(final PBInfo info, final Object array, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        if (array == null) return 0;
+        final int count = Array.getLength(array);
+        if (count == 0) return 0;
+        final int dataSize = computeArrayDataSize(info.mType, array);
+        if (!info.mPacked) {
+            return computeTagSize(info.mTag) * count + dataSize;
+        }
+        if (sizes != null) {
+            sizes.set(sizes.reserve(), dataSize);
+        }
+        return computeTagSize(info.mTag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    private static int computeArrayDataSize(final PBWireFormat.FieldType fieldType, final Object array)
+            throws InvalidProtocolBufferException {
+        int size = 0;
+        switch (fieldType) {
+            case DOUBLE:
+            case FIXED64:
+            case SFIXED64:
+                return Array.getLength(array) * LITTLE_ENDIAN_64_SIZE;
+            case FLOAT:
+            case FIXED32:
+            case SFIXED32:
+                return Array.getLength(array) * LITTLE_ENDIAN_32_SIZE;
+            case BOOL:
+                return Array.getLength(array);
+            case INT32:
+            case ENUM:
+                for (int value : (int[]) array) {
+                    size += computeInt32SizeNoTag(value);
+                }
+                return size;
+            case SINT32:
+                for (int value : (int[]) array) {
+                    size += computeSInt32SizeNoTag(value);
+                }
+                return size;
+            case INT64:
+            case UINT64:
+                for (long value : (long[]) array) {
+                    size += computeRawVarint64Size(value);
+                }
+                return size;
+            case SINT64:
+                for (long value : (long[]) array) {
+                    size += computeSInt64SizeNoTag(value);
+                }
+                return size;
+            case UINT32:
+                for (long value : (long[]) array) {
+                    size += computeUInt32SizeNoTag((int) value);
+                }
+                return size;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
+    /**
+     * 计算基本类型字段的长度, 通过 {@link PBAccessor} 直接取值, 不装箱.
+     * 只能用于 {@link PBInfo#mPrimitive} 为 true 的字段.
+     */
+    static int computePrimitiveFieldSize(final PBInfo info, final Object target)
+            throws IllegalAccessException, InvalidProtocolBufferException {
+        final PBAccessor accessor = info.mAccessor;
+        final int fieldNumber = info.mTag;
+        switch (info.mType) {
+            case DOUBLE:
+                return computeDoubleSize(fieldNumber, accessor.getDouble(target));
+            case FLOAT:
+                return computeFloatSize(fieldNumber, accessor.getFloat(target));
+            case INT64:
+                return computeInt64Size(fieldNumber, accessor.getLong(target));
+            case UINT64:
+                return computeUInt64Size(fieldNumber, accessor.getLong(target));
+            case INT32:
+                return computeInt32Size(fieldNumber, accessor.getInt(target));
+            case UINT32:
+                return computeUInt32Size(fieldNumber, (int) accessor.getLong(target));
+            case BOOL:
+                return computeBoolSize(fieldNumber, accessor.getBoolean(target));
+            case FIXED64:
+                return computeFixed64Size(fieldNumber, accessor.getLong(target));
+            case FIXED32:
+                return computeFixed32Size(fieldNumber, accessor.getInt(target));
+            case ENUM:
+                return computeEnumSize(fieldNumber, accessor.getInt(target));
+            case SFIXED32:
+                return computeSFixed32Size(fieldNumber, accessor.getInt(target));
+            case SFIXED64:
+                return computeSFixed64Size(fieldNumber, accessor.getLong(target));
+            case SINT32:
+                return computeSInt32Size(fieldNumber, accessor.getInt(target));
+            case SINT64:
+                return computeSInt64Size(fieldNumber, accessor.getLong(target));
             default:
                 throw InvalidProtocolBufferException.invalidWireType();
         }
@@ -388,24 +714,33 @@ public final class PBCodedOutputStream {
      * {@code string} field.
      */
     public static int computeStringSizeNoTag(final String value) {
-        try {
-            final byte[] bytes = value.getBytes("UTF-8");
-            return computeRawVarint32Size(bytes.length) +
-                    bytes.length;
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException("UTF-8 not supported.", e);
-        }
+        final int length = Utf8.encodedLength(value);
+        return computeRawVarint32Size(length) + length;
     }
 
     /**
      * Compute the number of bytes that would be needed to encode an embedded
      * message field.
      */
-    public static int computeMessageSizeNoTag(final PBMessage<Object> value) {
+    public static int computeMessageSizeNoTag(final PBMessage<Object> value) throws InvalidProtocolBufferException {
         final int size = value.size();
         return computeRawVarint32Size(size) + size;
     }
 
+    /**
+     * 同 {@link #computeMessageSizeNoTag(PBMessage)}, {@code sizes} 不为null时按先序记下长度.
+     */
+    static int computeMessageSizeNoTag(final PBMessage<Object> value, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        if (sizes == null) {
+            return computeMessageSizeNoTag(value);
+        }
+        final int slot = sizes.reserve();
+        final int size = value.size(sizes);
+        sizes.set(slot, size);
+        return computeRawVarint32Size(size) + size;
+    }
+
     /**
      * Compute the number of bytes that would be needed to encode a
      * {@code bytes} field.
@@ -627,6 +962,316 @@ public final class PBCodedOutputStream {
         writeMessageNoTag(value);
     }
 
+    /**
+     * 同 {@link #writeMessage(int, PBMessage)}, 用 {@code codec} 写, 不创建 {@link PBMessage}.
+     */
+    public <T> void writeMessage(final int fieldNumber, final PBCodec<T> codec, final T value) throws IOException {
+        writeTag(fieldNumber, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeMessageNoTag(codec, value);
+    }
+
+    public <T> void writeDynamicMessage(final int fieldNumber, final PBCodec<T> codec, final T value,
+                                        final int polymTag) throws IOException {
+        writeTag(fieldNumber, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeInt32NoTag(polymTag);
+        writeMessageNoTag(codec, value);
+    }
+
+    /**
+     * 写一个带 varint 长度前缀的 message, 同 protobuf 的 {@code writeDelimitedTo}. 嵌套 message 的长度只算一次.
+     */
+    public <T> void writeDelimited(final PBCodec<T> codec, final T value) throws IOException {
+        final MessageSizes saved = messageSizes;
+        final MessageSizes sizes = obtainMessageSizes();
+        try {
+            computeMessageSizeNoTag(codec, value, sizes);
+            messageSizes = sizes;
+            writeMessageNoTag(codec, value);
+        } finally {
+            messageSizes = saved;
+            recycleMessageSizes(sizes);
+        }
+    }
+
+    /**
+     * 写嵌套 message 的长度和内容, 按顺序用 {@link #computeMessageSizeNoTag(PBCodec, Object, MessageSizes)} 记下的长度.
+     */
+    public <T> void writeMessageNoTag(final PBCodec<T> codec, final T value) throws IOException {
+        int size = messageSizes != null ? messageSizes.next() : -1;
+        if (size < 0) {
+            size = codec.size(value);
+        }
+        writeRawVarint32(size);
+        codec.encode(value, this);
+    }
+
+    /**
+     * 按 packed 编码写一个 repeated 数值字段, 包括 tag. 空的 List 不写.
+     */
+    void writePackedField(final PBWireFormat.FieldType fieldType, final int fieldNumber, final List<?> values)
+            throws IOException {
+        if (values.isEmpty()) return;
+        int dataSize = messageSizes != null ? messageSizes.next() : -1;
+        if (dataSize < 0) {
+            dataSize = computePackedDataSize(fieldType, values);
+        }
+        writeTag(fieldNumber, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+        writeRawVarint32(dataSize);
+        for (Object value : values) {
+            if (value == null) continue;
+            switch (fieldType) {
+                case DOUBLE:
+                    writeDoubleNoTag((Double) value);
+                    break;
+                case FLOAT:
+                    writeFloatNoTag((Float) value);
+                    break;
+                case INT64:
+                    writeInt64NoTag((Long) value);
+                    break;
+                case UINT64:
+                    writeUInt64NoTag((Long) value);
+                    break;
+                case INT32:
+                    writeInt32NoTag((Integer) value);
+                    break;
+                case FIXED64:
+                    writeFixed64NoTag((Long) value);
+                    break;
+                case FIXED32:
+                    writeFixed32NoTag((Integer) value);
+                    break;
+                case BOOL:
+                    writeBoolNoTag((Boolean) value);
+                    break;
+                case UINT32:
+                    writeUInt32NoTag(((Long) value).intValue());
+                    break;
+                case ENUM:
+                    writeEnumNoTag((Integer) value);
+                    break;
+                case SFIXED32:
+                    writeSFixed32NoTag((Integer) value);
+                    break;
+                case SFIXED64:
+                    writeSFixed64NoTag((Long) value);
+                    break;
+                case SINT32:
+                    writeSInt32NoTag((Integer) value);
+                    break;
+                case SINT64:
+                    writeSInt64NoTag((Long) value);
+                    break;
+                default:
+                    throw InvalidProtocolBufferException.invalidWireType();
+            }
+        }
+    }
+
+    /**
+     * 写基本类型数组字段 (int[], long[] 等), 包括 tag. 按类型展开成单独的循环, 不装箱.
+     */
+    void writeArrayField(final PBInfo info, final Object array) throws IOException {
+        if (array == null) return;
+        final int count = Array.getLength(array);
+        if (count == 0) return;
+        // 不 packed 时每个元素前面写的 tag, packed 时为 0
+        final int elementTag;
+        if (info.mPacked) {
+            int dataSize = messageSizes != null ? messageSizes.next() : -1;
+            if (dataSize < 0) {
+                dataSize = computeArrayDataSize(info.mType, array);
+            }
+            writeTag(info.mTag, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+            writeRawVarint32(dataSize);
+            elementTag = 0;
+        } else {
+            elementTag = PBWireFormat.makeTag(info.mTag, info.mType.getWireType());
+        }
+        switch (info.mType) {
+            case DOUBLE:
+                for (double value : (double[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawLittleEndian64(Double.doubleToRawLongBits(value));
+                }
+                break;
+            case FLOAT:
+                for (float value : (float[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawLittleEndian32(Float.floatToRawIntBits(value));
+                }
+                break;
+            case FIXED64:
+            case SFIXED64:
+                for (long value : (long[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawLittleEndian64(value);
+                }
+                break;
+            case FIXED32:
+            case SFIXED32:
+                for (int value : (int[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawLittleEndian32(value);
+                }
+                break;
+            case BOOL:
+                for (boolean value : (boolean[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawByte(value ? 1 : 0);
+                }
+                break;
+            case INT32:
+            case ENUM:
+                for (int value : (int[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeInt32NoTag(value);
+                }
+                break;
+            case SINT32:
+                for (int value : (int[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawVarint32(encodeZigZag32(value));
+                }
+                break;
+            case INT64:
+            case UINT64:
+                for (long value : (long[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawVarint64(value);
+                }
+                break;
+            case SINT64:
+                for (long value : (long[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawVarint64(encodeZigZag64(value));
+                }
+                break;
+            case UINT32:
+                for (long value : (long[]) array) {
+                    if (elementTag != 0) writeRawVarint32(elementTag);
+                    writeRawVarint32((int) value);
+                }
+                break;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
+    /**
+     * 计算 Map 字段的长度, 包括每个 entry 的 tag. 每个 entry 编码成 key 为 tag 1, value 为 tag 2 的嵌套 message,
+     * 但不为它创建 {@link PBMessage}. {@code sizes} 不为null时同嵌套 message 一样按先序记下每个 entry 的长度.
+     */
+    static int computeMapFieldSize(final PBInfo info, final Map<?, ?> map, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        if (map == null || map.isEmpty()) return 0;
+        final int tagSize = computeTagSize(info.mTag);
+        int size = 0;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            final int slot = sizes != null ? sizes.reserve() : -1;
+            final int entrySize = computeMapEntrySize(info, entry, sizes);
+            if (sizes != null) {
+                sizes.set(slot, entrySize);
+            }
+            size += tagSize + computeRawVarint32Size(entrySize) + entrySize;
+        }
+        return size;
+    }
+
+    private static int computeMapEntrySize(final PBInfo info, final Map.Entry<?, ?> entry, final MessageSizes sizes)
+            throws InvalidProtocolBufferException {
+        final Object value = entry.getValue();
+        final int valueSize = info.mType == PBWireFormat.FieldType.MESSAGE && value != null
+                ? computeMessageSize(PBWireFormat.MAP_VALUE_FIELD_NUMBER, info.getNestedCodec(value.getClass()), value, sizes)
+                : computeFieldSize(info.mType, PBWireFormat.MAP_VALUE_FIELD_NUMBER, value, sizes);
+        return computeMapKeySize(info.mKeyType, entry.getKey()) + valueSize;
+    }
+
+    /**
+     * key 只能是整数, bool 和 string, 不经过 {@link #computeFieldSize} 的通用分支.
+     */
+    private static int computeMapKeySize(final PBWireFormat.FieldType keyType, final Object key)
+            throws InvalidProtocolBufferException {
+        if (key == null) return 0;
+        // tag 1 的 key 只占一个字节
+        switch (keyType) {
+            case STRING:
+                return 1 + computeStringSizeNoTag((String) key);
+            case INT32:
+            case ENUM:
+                return 1 + computeInt32SizeNoTag((Integer) key);
+            case INT64:
+            case UINT64:
+                return 1 + computeRawVarint64Size((Long) key);
+            case BOOL:
+                return 1 + 1;
+            default:
+                return computeFieldSize(keyType, PBWireFormat.MAP_KEY_FIELD_NUMBER, key, null);
+        }
+    }
+
+    /**
+     * 写 Map 字段, 见 {@link #computeMapFieldSize}.
+     */
+    void writeMapField(final PBInfo info, final Map<?, ?> map) throws IOException {
+        if (map == null || map.isEmpty()) return;
+        final int entryTag = PBWireFormat.makeTag(info.mTag, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            int entrySize = messageSizes != null ? messageSizes.next() : -1;
+            if (entrySize < 0) {
+                entrySize = computeMapEntrySize(info, entry, null);
+            }
+            writeRawVarint32(entryTag);
+            writeRawVarint32(entrySize);
+            writeMapKey(info.mKeyType, entry.getKey());
+            final Object value = entry.getValue();
+            if (info.mType == PBWireFormat.FieldType.MESSAGE && value != null) {
+                writeMessage(PBWireFormat.MAP_VALUE_FIELD_NUMBER, info.getNestedCodec(value.getClass()), value);
+            } else {
+                writeField(info.mType, PBWireFormat.MAP_VALUE_FIELD_NUMBER, value);
+            }
+        }
+    }
+
+    private void writeMapKey(final PBWireFormat.FieldType keyType, final Object key) throws IOException {
+        if (key == null) return;
+        switch (keyType) {
+            case STRING:
+                writeRawByte(MAP_KEY_TAG_LENGTH_DELIMITED);
+                writeStringNoTag((String) key);
+                break;
+            case INT32:
+            case ENUM:
+                writeRawByte(MAP_KEY_TAG_VARINT);
+                writeInt32NoTag((Integer) key);
+                break;
+            case INT64:
+            case UINT64:
+                writeRawByte(MAP_KEY_TAG_VARINT);
+                writeRawVarint64((Long) key);
+                break;
+            case BOOL:
+                writeRawByte(MAP_KEY_TAG_VARINT);
+                writeRawByte((Boolean) key ? 1 : 0);
+                break;
+            default:
+                writeField(keyType, PBWireFormat.MAP_KEY_FIELD_NUMBER, key);
+                break;
+        }
+    }
+
+    /**
+     * 按原始字节写回一个还没解析的 {@link LazySlice}, 包括 tag.
+     */
+    void writeLazySlice(final int fieldNumber, final LazySlice slice) throws IOException {
+        writeTag(fieldNumber, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+        if (slice.mPolymTag >= 0) {
+            writeInt32NoTag(slice.mPolymTag);
+        }
+        writeRawVarint32(slice.mLength);
+        writeRawBytes(slice.mData, slice.mOffset, slice.mLength);
+    }
+
     /**
      * Write a {@code bytes} field, including tag, to the stream.
      */
@@ -758,19 +1403,54 @@ public final class PBCodedOutputStream {
      * Write a {@code string} field to the stream.
      */
     public void writeStringNoTag(final String value) throws IOException {
-        // Unfortunately there does not appear to be any way to tell Java to encode
-        // UTF-8 directly into our buffer, so we have to let it create its own byte
-        // array and then copy.
-        final byte[] bytes = value.getBytes("UTF-8");
-        writeRawVarint32(bytes.length);
-        writeRawBytes(bytes);
+        final int length = Utf8.encodedLength(value);
+        writeRawVarint32(length);
+        if (limit - position >= length) {
+            // Encode straight into our buffer.
+            position = Utf8.encode(value, buffer, position);
+        } else {
+            writeStringSlow(value);
+        }
+    }
+
+    /**
+     * 剩余空间放不下整个字符串时逐字节写, 让 writeRawByte 负责刷新 buffer.
+     */
+    private void writeStringSlow(final String value) throws IOException {
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                writeRawByte(c);
+            } else if (c < 0x800) {
+                writeRawByte(0xC0 | (c >>> 6));
+                writeRawByte(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                writeRawByte(0xF0 | (codePoint >>> 18));
+                writeRawByte(0x80 | ((codePoint >>> 12) & 0x3F));
+                writeRawByte(0x80 | ((codePoint >>> 6) & 0x3F));
+                writeRawByte(0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                writeRawByte('?');
+            } else {
+                writeRawByte(0xE0 | (c >>> 12));
+                writeRawByte(0x80 | ((c >>> 6) & 0x3F));
+                writeRawByte(0x80 | (c & 0x3F));
+            }
+        }
     }
 
     /**
      * Write an embedded message field to the stream.
      */
     public void writeMessageNoTag(final PBMessage<Object> value) throws IOException {
-        writeRawVarint32(value.size());
+        int size = messageSizes != null ? messageSizes.next() : -1;
+        if (size < 0) {
+            size = value.size();
+        }
+        writeRawVarint32(size);
         value.serialize(this);
     }
 
@@ -854,14 +1534,119 @@ public final class PBCodedOutputStream {
             case BOOL:
                 writeBool(fieldNumber, (Boolean) value);
                 break;
+            case FIXED64:
+                writeFixed64(fieldNumber, (Long) value);
+                break;
+            case FIXED32:
+                writeFixed32(fieldNumber, (Integer) value);
+                break;
+            case ENUM:
+                writeEnum(fieldNumber, (Integer) value);
+                break;
+            case SFIXED32:
+                writeSFixed32(fieldNumber, (Integer) value);
+                break;
+            case SFIXED64:
+                writeSFixed64(fieldNumber, (Long) value);
+                break;
+            case SINT32:
+                writeSInt32(fieldNumber, (Integer) value);
+                break;
+            case SINT64:
+                writeSInt64(fieldNumber, (Long) value);
+                break;
             case STRING:
                 writeString(fieldNumber, (String) value);
                 break;
             case BYTES:
-                writeBytes(fieldNumber, (PBBytes) value);
+                if (value instanceof byte[]) {
+                    writeTag(fieldNumber, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+                    writeRawVarint32(((byte[]) value).length);
+                    writeRawBytes((byte[]) value);
+                } else {
+                    writeBytes(fieldNumber, (PBBytes) value);
+                }
                 break;
             case MESSAGE:
-                writeMessage(fieldNumber, new PBMessage<Object>(value));
+                writeMessage(fieldNumber, FieldBuilder.getItem(value.getClass()).getCodec(), value);
+                break;
+            default:
+                throw InvalidProtocolBufferException.invalidWireType();
+        }
+    }
+
+    MessageSizes getMessageSizes() {
+        return messageSizes;
+    }
+
+    void setMessageSizes(final MessageSizes sizes) {
+        messageSizes = sizes;
+    }
+
+    MessageSizes obtainMessageSizes() {
+        MessageSizes sizes = spareMessageSizes;
+        spareMessageSizes = null;
+        if (sizes == null) {
+            sizes = new MessageSizes();
+        }
+        sizes.clear();
+        return sizes;
+    }
+
+    void recycleMessageSizes(final MessageSizes sizes) {
+        spareMessageSizes = sizes;
+    }
+
+    /**
+     * 写基本类型字段, 通过 {@link PBAccessor} 直接取值, 不装箱.
+     * 只能用于 {@link PBInfo#mPrimitive} 为 true 的字段.
+     */
+    void writePrimitiveField(final PBInfo info, final Object target)
+            throws IOException, IllegalAccessException {
+        final PBAccessor accessor = info.mAccessor;
+        final int fieldNumber = info.mTag;
+        switch (info.mType) {
+            case DOUBLE:
+                writeDouble(fieldNumber, accessor.getDouble(target));
+                break;
+            case FLOAT:
+                writeFloat(fieldNumber, accessor.getFloat(target));
+                break;
+            case INT64:
+                writeInt64(fieldNumber, accessor.getLong(target));
+                break;
+            case UINT64:
+                writeUInt64(fieldNumber, accessor.getLong(target));
+                break;
+            case INT32:
+                writeInt32(fieldNumber, accessor.getInt(target));
+                break;
+            case UINT32:
+                writeUInt32(fieldNumber, (int) accessor.getLong(target));
+                break;
+            case BOOL:
+                writeBool(fieldNumber, accessor.getBoolean(target));
+                break;
+            case FIXED64:
+                writeFixed64(fieldNumber, accessor.getLong(target));
+                break;
+            case FIXED32:
+                writeFixed32(fieldNumber, accessor.getInt(target));
+                break;
+            case ENUM:
+                writeEnum(fieldNumber, accessor.getInt(target));
+                break;
+            case SFIXED32:
+                writeSFixed32(fieldNumber, accessor.getInt(target));
+                break;
+            case SFIXED64:
+                writeSFixed64(fieldNumber, accessor.getLong(target));
+                break;
+            case SINT32:
+                writeSInt32(fieldNumber, accessor.getInt(target));
+                break;
+            case SINT64:
+                writeSInt64(fieldNumber, accessor.getLong(target));
                 break;
             default:
                 throw InvalidProtocolBufferException.invalidWireType();
@@ -873,33 +1658,65 @@ public final class PBCodedOutputStream {
      * buffer position is reset to its initial tag when this returns.
      */
     private void refreshBuffer() throws IOException {
-        if (output == null) {
+        if (output == null && (byteBufferOutput == null || byteBufferInPlace)) {
             // We're writing to a single buffer.
             throw new OutOfSpaceException();
         }
 
         // Since we have an output stream, this is our buffer
         // and buffer offset == 0
-        output.write(buffer, 0, position);
+        writeToOutput(buffer, 0, position);
         position = 0;
     }
 
+    /**
+     * Writes straight to the OutputStream or ByteBuffer, bypassing the buffer.
+     */
+    private void writeToOutput(final byte[] value, final int offset, final int length) throws IOException {
+        if (output != null) {
+            output.write(value, offset, length);
+            return;
+        }
+        if (byteBufferOutput.remaining() < length) {
+            if (byteBufferPool == null) {
+                throw new OutOfSpaceException();
+            }
+            growByteBuffer(length);
+        }
+        byteBufferOutput.put(value, offset, length);
+    }
+
+    private void growByteBuffer(final int needed) {
+        final ByteBuffer old = byteBufferOutput;
+        final long capacity = Math.max((long) old.capacity() * 2, (long) old.position() + needed);
+        final ByteBuffer grown = byteBufferPool.acquire((int) Math.min(capacity, Integer.MAX_VALUE));
+        old.flip();
+        grown.put(old);
+        byteBufferPool.release(old);
+        byteBufferOutput = grown;
+    }
+
     /**
      * Flushes the stream and forces any buffered bytes to be written.  This
      * does not flush the underlying OutputStream.
      */
     public void flush() throws IOException {
-        if (output != null) {
+        if (byteBufferInPlace) {
+            byteBufferOutput.position(position - byteBufferOutput.arrayOffset());
+        } else if (output != null || byteBufferOutput != null) {
             refreshBuffer();
         }
     }
 
     /**
-     * If writing to a flat array, return the space left in the array.
-     * Otherwise, throws {@code UnsupportedOperationException}.
+     * If writing to a flat array or a fixed {@code ByteBuffer}, return the
+     * space left in it.  Otherwise, throws {@code UnsupportedOperationException}.
      */
     public int spaceLeft() {
-        if (output == null) {
+        if (output == null && byteBufferPool == null) {
+            if (byteBufferOutput != null && !byteBufferInPlace) {
+                return byteBufferOutput.remaining() - position;
+            }
             return limit - position;
         } else {
             throw new UnsupportedOperationException(
@@ -983,7 +1800,7 @@ public final class PBCodedOutputStream {
                 position = length;
             } else {
                 // Write is very big.  Let's do it all at once.
-                output.write(value, offset, length);
+                writeToOutput(value, offset, length);
             }
         }
     }
@@ -1030,7 +1847,7 @@ public final class PBCodedOutputStream {
                     if (bytesRead != bytesToRead) {
                         throw new IllegalStateException("Read failed? Should never happen");
                     }
-                    output.write(buffer, 0, bytesRead);
+                    writeToOutput(buffer, 0, bytesRead);
                     length -= bytesRead;
                 }
             }
@@ -1050,6 +1867,15 @@ public final class PBCodedOutputStream {
      * unsigned, so it won't be sign-extended if negative.
      */
     public void writeRawVarint32(int value) throws IOException {
+        if (limit - position >= 5) {
+            // Fast path:  enough room, write straight into the buffer.
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+            return;
+        }
         while (true) {
             if ((value & ~0x7F) == 0) {
                 writeRawByte(value);
@@ -1065,6 +1891,15 @@ public final class PBCodedOutputStream {
      * Encode and write a varint.
      */
     public void writeRawVarint64(long value) throws IOException {
+        if (limit - position >= 10) {
+            // Fast path:  see writeRawVarint32().
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) (((int) value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+            return;
+        }
         while (true) {
             if ((value & ~0x7FL) == 0) {
                 writeRawByte((int) value);
@@ -1080,6 +1915,16 @@ public final class PBCodedOutputStream {
      * Write a little-endian 32-bit integer.
      */
     public void writeRawLittleEndian32(final int value) throws IOException {
+        if (limit - position >= LITTLE_ENDIAN_32_SIZE) {
+            final byte[] buf = buffer;
+            int pos = position;
+            buf[pos++] = (byte) value;
+            buf[pos++] = (byte) (value >> 8);
+            buf[pos++] = (byte) (value >> 16);
+            buf[pos++] = (byte) (value >> 24);
+            position = pos;
+            return;
+        }
         writeRawByte((value) & 0xFF);
         writeRawByte((value >> 8) & 0xFF);
         writeRawByte((value >> 16) & 0xFF);
@@ -1090,6 +1935,20 @@ public final class PBCodedOutputStream {
      * Write a little-endian 64-bit integer.
      */
     public void writeRawLittleEndian64(final long value) throws IOException {
+        if (limit - position >= LITTLE_ENDIAN_64_SIZE) {
+            final byte[] buf = buffer;
+            int pos = position;
+            buf[pos++] = (byte) value;
+            buf[pos++] = (byte) (value >> 8);
+            buf[pos++] = (byte) (value >> 16);
+            buf[pos++] = (byte) (value >> 24);
+            buf[pos++] = (byte) (value >> 32);
+            buf[pos++] = (byte) (value >> 40);
+            buf[pos++] = (byte) (value >> 48);
+            buf[pos++] = (byte) (value >> 56);
+            position = pos;
+            return;
+        }
         writeRawByte((int) (value) & 0xFF);
         writeRawByte((int) (value >> 8) & 0xFF);
         writeRawByte((int) (value >> 16) & 0xFF);
@@ -0,0 +1,198 @@
+package pb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * 把 {@link ClassDef} 对象存到 SQLite 的一张表里, 存法由 {@link DaoType} 决定:
+ * {@link DaoType#ProtocolBuffer} 整个对象序列化后存成一个 BLOB 列,
+ * {@link DaoType#SQLLite} 按 {@link FieldBuilder} 的字段列表每个字段一列, 见 {@link ColumnDao}.
+ * <p/>
+ * 每张表都有 {@link #ID_COLUMN} 作主键. insert 语句只编译一次, 之后反复使用; {@link #insertAll} 把整批放在一个事务里.
+ * 数据库由调用方打开和关闭, 用完调 {@link #close()} 释放编译好的语句. 所有方法都加了锁.
+ */
+public abstract class PBDao<T> {
+    public static final String ID_COLUMN = "_id";
+
+    final SQLiteDatabase mDatabase;
+    final String mTable;
+    private String mSelect;
+    private SQLiteStatement mInsert;
+
+    PBDao(SQLiteDatabase database, String table) {
+        mDatabase = database;
+        mTable = quote(table);
+    }
+
+    /**
+     * 打开 {@code type} 的表, 不存在时创建. 表名为类的全名, '.' 换成 '_'.
+     */
+    public static <T> PBDao<T> open(SQLiteDatabase database, Class<T> type, DaoType daoType) throws InvalidProtocolBufferException {
+        return open(database, type, daoType, type.getName().replace('.', '_').replace('$', '_'));
+    }
+
+    public static <T> PBDao<T> open(SQLiteDatabase database, Class<T> type, DaoType daoType, String table)
+            throws InvalidProtocolBufferException {
+        PBDao<T> dao;
+        switch (daoType) {
+            case ProtocolBuffer:
+                dao = new BlobDao<T>(database, table, type);
+                break;
+            case SQLLite:
+                dao = new ColumnDao<T>(database, table, type);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown dao type: " + daoType);
+        }
+        dao.createTable();
+        return dao;
+    }
+
+    /**
+     * 除了 {@link #ID_COLUMN} 之外的列名, 顺序同 {@link #bind} 和 {@link #read}.
+     */
+    abstract String[] columnNames();
+
+    abstract String[] columnTypes();
+
+    /**
+     * 把 {@code object} 绑定到 insert 语句的第 1 个参数开始的位置, 每一列都要绑定, 语句是复用的.
+     */
+    abstract void bind(SQLiteStatement statement, T object) throws IOException;
+
+    /**
+     * 从 {@code cursor} 的当前行读一个对象, 第 0 列是 {@link #ID_COLUMN}.
+     */
+    abstract T read(Cursor cursor) throws IOException;
+
+    private void createTable() {
+        String[] names = columnNames();
+        String[] types = columnTypes();
+        StringBuilder create = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(mTable)
+                .append(" (").append(ID_COLUMN).append(" INTEGER PRIMARY KEY");
+        StringBuilder select = new StringBuilder("SELECT ").append(ID_COLUMN);
+        for (int i = 0; i < names.length; i++) {
+            create.append(", ").append(quote(names[i])).append(' ').append(types[i]);
+            select.append(", ").append(quote(names[i]));
+        }
+        mDatabase.execSQL(create.append(')').toString());
+        mSelect = select.append(" FROM ").append(mTable).toString();
+    }
+
+    private SQLiteStatement insertStatement() {
+        if (mInsert == null) {
+            String[] names = columnNames();
+            StringBuilder columns = new StringBuilder();
+            StringBuilder values = new StringBuilder();
+            for (int i = 0; i < names.length; i++) {
+                if (i > 0) {
+                    columns.append(", ");
+                    values.append(", ");
+                }
+                columns.append(quote(names[i]));
+                values.append('?');
+            }
+            mInsert = mDatabase.compileStatement("INSERT INTO " + mTable + " (" + columns + ") VALUES (" + values + ")");
+        }
+        return mInsert;
+    }
+
+    /**
+     * 插入一条, 返回它的 {@link #ID_COLUMN}.
+     */
+    public synchronized long insert(T object) throws IOException {
+        SQLiteStatement statement = insertStatement();
+        bind(statement, object);
+        return statement.executeInsert();
+    }
+
+    /**
+     * 在一个事务里插入全部, 中间出错时整批回滚.
+     */
+    public synchronized void insertAll(Collection<? extends T> objects) throws IOException {
+        SQLiteStatement statement = insertStatement();
+        mDatabase.beginTransaction();
+        try {
+            for (T object : objects) {
+                bind(statement, object);
+                statement.executeInsert();
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * 按 {@link #ID_COLUMN} 读一条, 不存在返回 null.
+     */
+    public synchronized T get(long id) throws IOException {
+        Cursor cursor = mDatabase.rawQuery(mSelect + " WHERE " + ID_COLUMN + " = ?", new String[]{String.valueOf(id)});
+        try {
+            return cursor.moveToNext() ? read(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * 按插入顺序读出全部.
+     */
+    public synchronized List<T> getAll() throws IOException {
+        Cursor cursor = mDatabase.rawQuery(mSelect + " ORDER BY " + ID_COLUMN, null);
+        try {
+            List<T> list = new ArrayList<T>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                list.add(read(cursor));
+            }
+            return list;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public synchronized boolean delete(long id) {
+        return mDatabase.delete(mTable, ID_COLUMN + " = ?", new String[]{String.valueOf(id)}) > 0;
+    }
+
+    public synchronized void clear() {
+        mDatabase.delete(mTable, null, null);
+    }
+
+    public synchronized long count() {
+        SQLiteStatement statement = mDatabase.compileStatement("SELECT COUNT(*) FROM " + mTable);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+
+    /**
+     * 释放编译好的语句, 不关闭数据库.
+     */
+    public synchronized void close() {
+        if (mInsert != null) {
+            mInsert.close();
+            mInsert = null;
+        }
+    }
+
+    static <T> byte[] encode(PBCodec<T> codec, T object) throws IOException {
+        byte[] bytes = new byte[codec.size(object)];
+        PBCodedOutputStream output = PBCodedOutputStream.newInstance(bytes);
+        codec.encode(object, output);
+        output.checkNoSpaceLeft();
+        return bytes;
+    }
+
+    private static String quote(String name) {
+        return '"' + name.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,68 @@
+package pb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 按顺序读 {@link PBDelimitedWriter} 或 {@link PBMessage#writeDelimitedTo} 写的 message.
+ * <p/>
+ * 所有 message 共用一个 {@link PBCodedInputStream} 和它的buffer, 每次只在内存里保留一个 message, 流的总长度
+ * 不受 {@link PBCodedInputStream#setSizeLimit(int)} 限制 (每个 message 单独计算). 也可以当 {@link Iterator} 用,
+ * 这时读失败抛 {@link IllegalStateException}. 不是线程安全的.
+ */
+public final class PBDelimitedReader<T> implements Iterator<T> {
+    private final PBCodec<T> mCodec;
+    private final PBCodedInputStream mInput;
+    // hasNext 时读好的下一个
+    private T mNext;
+
+    public PBDelimitedReader(Class<T> type, InputStream input) throws InvalidProtocolBufferException {
+        mCodec = FieldBuilder.getCodec(type);
+        mInput = PBCodedInputStream.newInstance(input);
+    }
+
+    /**
+     * 读下一个 message, 已经到结尾时返回 null.
+     */
+    public T read() throws IOException {
+        if (mNext != null) {
+            T next = mNext;
+            mNext = null;
+            return next;
+        }
+        if (mInput.isAtEnd()) {
+            return null;
+        }
+        mInput.resetSizeCounter();
+        return mInput.readMessage(mCodec);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null) {
+            try {
+                mNext = read();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return mNext != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T next = mNext;
+        mNext = null;
+        return next;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,37 @@
+package pb;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 连续写带 varint 长度前缀的 message, 格式同 {@link PBMessage#writeDelimitedTo}, 用 {@link PBDelimitedReader} 读.
+ * <p/>
+ * 所有 message 共用一个 {@link PBCodedOutputStream} 和它的buffer, 不为每个 message 分配. 不是线程安全的.
+ */
+public final class PBDelimitedWriter<T> {
+    private final PBCodec<T> mCodec;
+    private final PBCodedOutputStream mOutput;
+
+    public PBDelimitedWriter(Class<T> type, OutputStream output) throws InvalidProtocolBufferException {
+        this(type, output, PBCodedOutputStream.DEFAULT_BUFFER_SIZE);
+    }
+
+    public PBDelimitedWriter(Class<T> type, OutputStream output, int bufferSize) throws InvalidProtocolBufferException {
+        mCodec = FieldBuilder.getCodec(type);
+        mOutput = PBCodedOutputStream.newInstance(output, bufferSize);
+    }
+
+    /**
+     * 写一个 message. 可能还在buffer里, 要写到 {@code output} 时调用 {@link #flush()}.
+     */
+    public void write(T message) throws IOException {
+        mOutput.writeDelimited(mCodec, message);
+    }
+
+    /**
+     * 把buffer里的数据写到 {@code output}, 不会 flush {@code output} 本身.
+     */
+    public void flush() throws IOException {
+        mOutput.flush();
+    }
+}
@@ -0,0 +1,145 @@
+package pb;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字段投影, 给 {@link PBMessage#parse(PBCodedInputStream, PBFieldMask)} 用: 只解析选中的字段, 其余的直接跳过不解码.
+ * <p/>
+ * 路径用 '.' 分隔, 每一段是 tag 或者 java 字段名, 如 {@code "1"}, {@code "2.1"}, {@code "mSelf.mInt"}.
+ * 路径停在某个 message 字段上表示整个子 message 都要. 第一次用于某个类时按 {@link FieldBuilder} 的 schema
+ * 编译成按字段位置的表并缓存. 创建之后不可变, 线程安全.
+ */
+public final class PBFieldMask {
+    // 路径的第一段 -> 剩下的部分, 为 null 表示整个字段都要
+    private final Map<String, PBFieldMask> mChildren = new LinkedHashMap<String, PBFieldMask>();
+    private final ConcurrentHashMap<Class<?>, Compiled> mCompiled = new ConcurrentHashMap<Class<?>, Compiled>();
+
+    private PBFieldMask() {
+    }
+
+    public static PBFieldMask of(String... paths) {
+        PBFieldMask mask = new PBFieldMask();
+        for (String path : paths) {
+            mask.add(path);
+        }
+        return mask;
+    }
+
+    public static PBFieldMask of(int... tags) {
+        PBFieldMask mask = new PBFieldMask();
+        for (int tag : tags) {
+            mask.add(String.valueOf(tag));
+        }
+        return mask;
+    }
+
+    private void add(String path) {
+        int dot = path.indexOf('.');
+        String head = dot < 0 ? path : path.substring(0, dot);
+        if (head.length() == 0 || dot == path.length() - 1) {
+            throw new IllegalArgumentException("invalid field path: " + path);
+        }
+        if (dot < 0) {
+            mChildren.put(head, null);
+            return;
+        }
+        PBFieldMask child;
+        if (mChildren.containsKey(head)) {
+            child = mChildren.get(head);
+            if (child == null) {
+                // 已经要整个字段了
+                return;
+            }
+        } else {
+            child = new PBFieldMask();
+            mChildren.put(head, child);
+        }
+        child.add(path.substring(dot + 1));
+    }
+
+    /**
+     * 按 {@code type} 的字段列表编译, 结果按类缓存.
+     *
+     * @throws IllegalArgumentException 路径里有不存在的字段, 或者在非 message 字段上继续往下
+     */
+    Compiled compile(Class<?> type, List<PBInfo> fields, FieldIndex index) {
+        Compiled compiled = mCompiled.get(type);
+        if (compiled == null) {
+            compiled = new Compiled(fields.size());
+            for (Map.Entry<String, PBFieldMask> entry : mChildren.entrySet()) {
+                int pos = resolve(type, entry.getKey(), fields, index);
+                PBFieldMask child = entry.getValue();
+                if (child != null && fields.get(pos).mType != PBWireFormat.FieldType.MESSAGE) {
+                    throw new IllegalArgumentException(type.getName() + "." + entry.getKey() + " is not a message");
+                }
+                if (compiled.mSelected[pos]) {
+                    // 同一个字段既按 tag 又按名字写了一遍
+                    child = merge(compiled.mChildren[pos], child);
+                }
+                compiled.mSelected[pos] = true;
+                compiled.mChildren[pos] = child;
+            }
+            Compiled old = mCompiled.putIfAbsent(type, compiled);
+            if (old != null) {
+                compiled = old;
+            }
+        }
+        return compiled;
+    }
+
+    private static int resolve(Class<?> type, String segment, List<PBInfo> fields, FieldIndex index) {
+        int pos = -1;
+        if (isNumber(segment)) {
+            pos = index.find(Integer.parseInt(segment));
+        } else {
+            for (int i = 0, n = fields.size(); i < n; i++) {
+                if (fields.get(i).mField.getName().equals(segment)) {
+                    pos = i;
+                    break;
+                }
+            }
+        }
+        if (pos < 0) {
+            throw new IllegalArgumentException("no field " + segment + " in " + type.getName());
+        }
+        return pos;
+    }
+
+    private static boolean isNumber(String segment) {
+        if (segment.length() > 9) return false;
+        for (int i = 0; i < segment.length(); i++) {
+            char c = segment.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    private static PBFieldMask merge(PBFieldMask a, PBFieldMask b) {
+        if (a == null || b == null) return null;
+        PBFieldMask mask = new PBFieldMask();
+        mask.mChildren.putAll(a.mChildren);
+        for (Map.Entry<String, PBFieldMask> entry : b.mChildren.entrySet()) {
+            String key = entry.getKey();
+            mask.mChildren.put(key, mask.mChildren.containsKey(key)
+                    ? merge(mask.mChildren.get(key), entry.getValue()) : entry.getValue());
+        }
+        return mask;
+    }
+
+    /**
+     * 编译后的结果, 下标是字段在 {@link FieldBuilder} 字段列表里的位置.
+     */
+    static final class Compiled {
+        final boolean[] mSelected;
+        // 子 message 的投影, null 表示整个都要
+        final PBFieldMask[] mChildren;
+
+        Compiled(int count) {
+            mSelected = new boolean[count];
+            mChildren = new PBFieldMask[count];
+        }
+    }
+}
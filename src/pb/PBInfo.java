@@ -1,7 +1,9 @@
 package pb;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by wallace on 14-1-15.
@@ -13,16 +15,107 @@ public class PBInfo {
     public PBWireFormat.FieldType mType;
     public PBWireFormat.FieldLabel mLabel;
     public Field mField;
+    public PBAccessor mAccessor;
     public Class<?> mClassType;
     public List<PolymItem> mPolymList;
+    // 非repeated的基本类型字段, 读写时不装箱, 见 PBCodedOutputStream.writePrimitiveField
+    public boolean mPrimitive;
+    // 字段声明为 PBLazy<T>, 见 PBLazy
+    public boolean mLazy;
+    // repeated 数值字段按 packed 编码, 见 FieldDef.packed
+    public boolean mPacked;
+    // 字段是基本类型数组 (byte[] 除外, 它是 BYTES), mClassType 为元素类型
+    public boolean mArray;
+    // Map 字段, 按 protobuf 的 map entry (key tag 1, value tag 2) 编码. mType/mClassType 是 value 的
+    public boolean mMap;
+    public PBWireFormat.FieldType mKeyType;
+    public Class<?> mKeyClass;
+    @SuppressWarnings("rawtypes")
+    public Class<? extends Map> mMapClass;
+    // mMapClass 的无参构造函数, 字段为 null 时用它创建
+    @SuppressWarnings("rawtypes")
+    Constructor<? extends Map> mMapConstructor;
+    // mClassType 的 schema, 第一次用时才取, 见 getNestedItem
+    private volatile FieldInfoCacheItem mNestedItem;
 
-    public PBInfo(int tag, PBWireFormat.FieldType type, PBWireFormat.FieldLabel label, Field field, Class<?> realType, List<PolymItem> polymList) {
+    public PBInfo(int tag, PBWireFormat.FieldType type, PBWireFormat.FieldLabel label, Field field, PBAccessor accessor, Class<?> realType, List<PolymItem> polymList) {
         mTag = tag;
         mType = type;
         mLabel = label;
         mField = field;
+        mAccessor = accessor;
         mClassType = realType;
         mPolymList = polymList;
+        mLazy = field.getType() == PBLazy.class;
+        mArray = field.getType().isArray() && field.getType() != byte[].class;
+        mMap = Map.class.isAssignableFrom(field.getType());
+        mPrimitive = label != PBWireFormat.FieldLabel.REPEATED && field.getType().isPrimitive() && isPrimitiveType(type);
+    }
+
+    private static boolean isPrimitiveType(PBWireFormat.FieldType type) {
+        switch (type) {
+            case DOUBLE:
+            case FLOAT:
+            case INT64:
+            case UINT64:
+            case INT32:
+            case UINT32:
+            case BOOL:
+            case FIXED64:
+            case FIXED32:
+            case ENUM:
+            case SFIXED32:
+            case SFIXED64:
+            case SINT32:
+            case SINT64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 可以按 packed 编码的类型, 即数值类型.
+     */
+    public static boolean isPackable(PBWireFormat.FieldType type) {
+        switch (type) {
+            case DOUBLE:
+            case FLOAT:
+            case INT64:
+            case UINT64:
+            case INT32:
+            case FIXED64:
+            case FIXED32:
+            case BOOL:
+            case UINT32:
+            case ENUM:
+            case SFIXED32:
+            case SFIXED64:
+            case SINT32:
+            case SINT64:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 嵌套message的 schema. {@code cls} 是字段声明的类型时缓存起来, 不用每次查 {@link FieldBuilder} 的缓存.
+     */
+    FieldInfoCacheItem getNestedItem(Class<?> cls) throws InvalidProtocolBufferException {
+        if (cls != mClassType) {
+            return FieldBuilder.getItem(cls);
+        }
+        FieldInfoCacheItem item = mNestedItem;
+        if (item == null) {
+            item = FieldBuilder.getItem(cls);
+            mNestedItem = item;
+        }
+        return item;
+    }
+
+    PBCodec<Object> getNestedCodec(Class<?> cls) throws InvalidProtocolBufferException {
+        return getNestedItem(cls).getCodec();
     }
 
     public int getPolymTag(Class<?> cls) throws InvalidProtocolBufferException {
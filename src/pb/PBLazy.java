@@ -0,0 +1,132 @@
+package pb;
+
+import java.io.IOException;
+
+/**
+ * 延迟解析的嵌套 message 字段, 声明成 {@code PBLazy<T>} 代替 {@code T} 即可.
+ * <p/>
+ * 解析时只记下这段数据在输入里的位置, 第一次 {@link #get()} 才真正解析; 没有访问过的直接按原始字节序列化回去.
+ * 输入是 byte 数组时引用的是原数组, 解析完之前不要修改它.
+ */
+public final class PBLazy<T> {
+    private LazySlice mSlice;
+    private T mValue;
+
+    public PBLazy() {
+    }
+
+    public PBLazy(T value) {
+        mValue = value;
+    }
+
+    /**
+     * 返回解析后的对象, 第一次调用时解析.
+     *
+     * @throws LazyParseException 数据有错, 解析失败; 之后再调用会再次解析
+     */
+    @SuppressWarnings("unchecked")
+    public T get() {
+        if (mSlice != null) {
+            mValue = (T) mSlice.decode();
+            mSlice = null;
+        }
+        return mValue;
+    }
+
+    public void set(T value) {
+        mValue = value;
+        mSlice = null;
+    }
+
+    /**
+     * 是否还没有解析过.
+     */
+    public boolean isLazy() {
+        return mSlice != null;
+    }
+
+    void setSlice(LazySlice slice) {
+        mSlice = slice;
+        mValue = null;
+    }
+
+    LazySlice getSlice() {
+        return mSlice;
+    }
+
+    T getValue() {
+        return mValue;
+    }
+}
+
+/**
+ * 输入里一段 length-delimited 数据的引用, 给 {@link PBLazy} 和 {@link LazyList} 用.
+ */
+final class LazySlice {
+    final byte[] mData;
+    final int mOffset;
+    final int mLength;
+    final PBWireFormat.FieldType mType;
+    // MESSAGE 的类型, 多态时是具体的子类
+    final Class<?> mClass;
+    // 多态 message 的类型 tag, 不是多态时为 -1
+    final int mPolymTag;
+    // 解析出来的 message 是否继续延迟解析
+    final boolean mLazy;
+
+    LazySlice(byte[] data, int offset, int length, PBWireFormat.FieldType type, Class<?> cls, int polymTag, boolean lazy) {
+        mData = data;
+        mOffset = offset;
+        mLength = length;
+        mType = type;
+        mClass = cls;
+        mPolymTag = polymTag;
+        mLazy = lazy;
+    }
+
+    /**
+     * 第一次访问时解析, 出错时抛 {@link LazyParseException}.
+     */
+    Object decode() {
+        switch (mType) {
+            case STRING:
+                char[] chars = new char[mLength];
+                return new String(chars, 0, Utf8.decode(mData, mOffset, mLength, chars));
+            case BYTES:
+                return PBBytes.copyFrom(mData, mOffset, mLength);
+            default:
+                try {
+                    return decodeMessage();
+                } catch (IOException e) {
+                    if (PBMetrics.ENABLED) PBMetrics.error(mClass, e);
+                    throw new LazyParseException(e);
+                }
+        }
+    }
+
+    /**
+     * 解析 MESSAGE 类型的 slice, 出错时抛出.
+     */
+    Object decodeMessage() throws IOException {
+        FieldInfoCacheItem item = FieldBuilder.getItem(mClass);
+        PBCodedInputStream input = PBCodedInputStream.newInstance(mData, mOffset, mLength);
+        if (!mLazy && item.mCodec != null) {
+            return item.mCodec.decode(input);
+        }
+        Object object = item.mReflectCodec.newInstance();
+        item.mReflectCodec.merge(object, input, null, mLazy, null);
+        return object;
+    }
+
+    /**
+     * 按原样写回去需要的字节数, 包括 tag.
+     */
+    int computeSize(int fieldNumber) {
+        int size = PBCodedOutputStream.computeTagSize(fieldNumber)
+                + PBCodedOutputStream.computeRawVarint32Size(mLength) + mLength;
+        if (mPolymTag >= 0) {
+            size += PBCodedOutputStream.computeInt32SizeNoTag(mPolymTag);
+        }
+        return size;
+    }
+}
@@ -1,15 +1,28 @@
 package pb;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Created by wallace on 14-1-15.
  */
 public class PBMessage<T> {
-    private List<PBInfo> m_fieldList;
+    // 编译期生成的codec, 没有则为null
+    private PBCodec<T> m_codec;
+    // 按反射实现的codec, 总是有, 见 ReflectCodec
+    private ReflectCodec<T> m_reflect;
     private T m_object;
+    // 延迟解析, 见 setLazyParsing
+    private boolean m_lazy;
+    // 复用嵌套message对象, 见 setRecycler
+    private PBRecycler m_recycler;
+    // 并行编码大的 repeated 字段, 见 setParallelExecutor
+    private Executor m_executor;
 
     public PBMessage(T object) throws InvalidProtocolBufferException {
 
@@ -26,12 +39,18 @@ public class PBMessage<T> {
             if (object instanceof Class<?>) {
                 initByClassType((Class<?>) object);
             } else {
-                m_fieldList = FieldBuilder.Build(object.getClass()).mInfo;
+                FieldInfoCacheItem item = FieldBuilder.Build(object.getClass());
+                m_codec = (PBCodec<T>) item.mCodec;
+                m_reflect = (ReflectCodec<T>) item.mReflectCodec;
                 m_object = (T) object;
             }
+        } catch (InvalidProtocolBufferException e) {
+            throw e;
         } catch (Exception e) {
-            e.printStackTrace();
-            throw InvalidProtocolBufferException.invalidJavaType();
+            InvalidProtocolBufferException error = InvalidProtocolBufferException.invalidJavaType();
+            error.initCause(e);
+            Class<?> type = object instanceof Class<?> ? (Class<?>) object : object.getClass();
+            throw error.addFieldPath(type.getSimpleName());
         }
     }
 
@@ -39,130 +58,332 @@ public class PBMessage<T> {
         return m_object;
     }
 
-    public int size() {
-        int size = 0;
+    /**
+     * 打开后 {@link #parse} 不再解析 repeated 的 message/string/bytes 字段, 只记下每个元素在输入里的位置,
+     * 字段换成一个第一次 {@code get} 时才解析元素的 List; 没访问过的元素序列化时按原始字节写回.
+     * 单个的嵌套 message 字段要延迟解析时声明成 {@link PBLazy}. 输入是 byte 数组时引用的是原数组,
+     * 用完之前不要修改它. 打开时不走生成的codec.
+     */
+    public void setLazyParsing(boolean lazy) {
+        m_lazy = lazy;
+    }
+
+    public boolean isLazyParsing() {
+        return m_lazy;
+    }
+
+    /**
+     * 设置后 {@link #clear()} 把嵌套的message对象交给 {@code recycler}, {@link #parse} 需要嵌套的message对象时
+     * 先从 {@code recycler} 取, 配合 {@link #parseInto} 反复解析时基本不产生垃圾. 设置时不走生成的codec.
+     */
+    public void setRecycler(PBRecycler recycler) {
+        m_recycler = recycler;
+    }
+
+    public PBRecycler getRecycler() {
+        return m_recycler;
+    }
+
+    /**
+     * 设置后序列化时, 最外层元素很多 (不少于 {@link ParallelEncoder#MIN_PARALLEL_SIZE}) 的 repeated message 字段
+     * 按段交给 {@code executor} 并行算长度和编码, 再按顺序拼起来, 结果和串行完全一样. 没有这样的字段时照常串行.
+     * <p/>
+     * {@link #parse} 时先扫一遍记下这些字段每个元素的位置, 再分段并行解析, 按原来的顺序加到 List 里,
+     * 见 {@link ParallelDecoder}; 延迟解析, 有投影或者设置了 {@link PBRecycler} 时不并行.
+     * 并行时最外层不走生成的codec, 期间不能修改对象. null 表示不并行.
+     */
+    public void setParallelExecutor(Executor executor) {
+        m_executor = executor;
+    }
+
+    public Executor getParallelExecutor() {
+        return m_executor;
+    }
+
+    /**
+     * 有可以并行编码的字段时并行编码, 返回按顺序的各段, 否则返回 null.
+     */
+    private List<byte[]> encodeParallel() throws IOException {
+        if (m_executor == null) {
+            return null;
+        }
         try {
-            for (PBInfo info : m_fieldList) {
-                if (info.mLabel == PBWireFormat.FieldLabel.REPEATED) {
-                    List<?> list = (List<?>) info.mField.get(m_object);
-                    for (Object obj : list) {
-                        if (info.isPolymMessage()) {
-                            // 扩展多态功能
-                            int polymTag = info.getPolymTag(obj.getClass());
-                            size += PBCodedOutputStream.computeDynamicMessageSize(info.mTag, new PBMessage<Object>(obj), polymTag);
-                        } else {
-                            size += PBCodedOutputStream.computeFieldSize(info.mType, info.mTag, obj);
-                        }
-                    }
-                } else {
-                    size += PBCodedOutputStream.computeFieldSize(info.mType, info.mTag, info.mField.get(m_object));
-                }
+            List<PBInfo> fields = m_reflect.getFields();
+            if (!ParallelEncoder.hasParallelField(fields, m_object)) {
+                return null;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return ParallelEncoder.encode(fields, m_object, m_executor);
+        } catch (IOException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * 把所有字段清成java默认值. List 和 Map 字段清空但保留原来的实例; 设置了 {@link PBRecycler} 时,
+     * 嵌套的message对象 (包括 List 和 Map 里的) 交给它回收.
+     */
+    public void clear() throws InvalidProtocolBufferException {
+        try {
+            m_reflect.clear(m_object, m_recycler);
+        } catch (InvalidProtocolBufferException e) {
+            throw failed(e);
+        }
+    }
+
+    /**
+     * 先 {@link #clear()} {@code object}, 再把 {@code input} 解析进去, 不创建新的对象; 之后 {@link #getObject()}
+     * 返回 {@code object}. {@code object} 必须和这个 PBMessage 的对象是同一个类.
+     */
+    public void parseInto(T object, PBCodedInputStream input) throws IOException {
+        if (object.getClass() != m_object.getClass()) {
+            throw new IllegalArgumentException(object.getClass().getName() + " is not " + m_object.getClass().getName());
         }
-        return size;
+        m_object = object;
+        clear();
+        parse(input);
     }
 
-    public void serialize(PBCodedOutputStream output) {
+    public int size() throws InvalidProtocolBufferException {
+        return size(null);
+    }
+
+    /**
+     * 计算长度, {@code sizes} 不为null时顺便按先序记下每个嵌套message的长度, 给 serialize 用.
+     */
+    int size(MessageSizes sizes) throws InvalidProtocolBufferException {
         try {
-            for (PBInfo info : m_fieldList) {
-                if (info.mLabel == PBWireFormat.FieldLabel.REPEATED) {
-                    List<?> list = (List<?>) info.mField.get(m_object);
-                    for (Object obj : list) {
-                        if (info.isPolymMessage()) {
-                            // 扩展多态功能
-                            int polymTag = info.getPolymTag(obj.getClass());
-                            output.writeDynamicMessage(info.mTag, new PBMessage<Object>(obj), polymTag);
-                        } else {
-                            output.writeField(info.mType, info.mTag, obj);
-                        }
-                    }
-                } else {
-                    output.writeField(info.mType, info.mTag, info.mField.get(m_object));
+            return (m_codec != null ? m_codec : m_reflect).size(m_object, sizes);
+        } catch (InvalidProtocolBufferException e) {
+            throw failed(e);
+        }
+    }
+
+    public void serialize(PBCodedOutputStream output) throws IOException {
+        MessageSizes sizes = output.getMessageSizes();
+        if (m_executor != null && sizes == null) {
+            long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+            List<byte[]> segments = encodeParallel();
+            if (segments != null) {
+                for (int i = 0, n = segments.size(); i < n; i++) {
+                    output.writeRawBytes(segments.get(i));
                 }
+                output.flush();
+                if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), ParallelEncoder.totalSize(segments), start);
+                return;
             }
-            output.flush();
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        if (sizes != null) {
+            // 嵌套在别的message里, 长度已经算好了; 统计时才为字节数单独算一次, 不计入耗时
+            int size = PBMetrics.ENABLED && PBMetrics.getListener() != null ? size() : 0;
+            long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+            serialize(output, sizes);
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+        } else {
+            long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+            sizes = output.obtainMessageSizes();
+            int size = size(sizes);
+            serialize(output, sizes);
+            output.recycleMessageSizes(sizes);
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
         }
     }
 
-    public void parse(PBCodedInputStream input) {
+    /**
+     * 用 {@link #size(MessageSizes)} 记下的长度序列化.
+     */
+    void serialize(PBCodedOutputStream output, MessageSizes sizes) throws IOException {
+        MessageSizes saved = output.getMessageSizes();
         try {
-            while (true) {
-                int tag = input.readTag();
-                if (tag == 0) break;
+            output.setMessageSizes(sizes);
+            (m_codec != null ? m_codec : m_reflect).encode(m_object, output);
+            output.flush();
+        } catch (IOException e) {
+            throw failed(e);
+        } finally {
+            output.setMessageSizes(saved);
+        }
+    }
 
-                int fieldTag = PBWireFormat.getTagFieldNumber(tag);
-                PBInfo field = getFieldByTag(fieldTag);
-                parseAndMergeField(tag, field, input);
+    public void parse(PBCodedInputStream input) throws IOException {
+        parse(input, null);
+    }
+
+    /**
+     * 只解析 {@code mask} 选中的字段, 其余的用 skipField 跳过, 不解码. {@code mask} 为 null 时全部解析.
+     * 有投影时不走生成的codec.
+     */
+    public void parse(PBCodedInputStream input, PBFieldMask mask) throws IOException {
+        long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+        int startBytes = PBMetrics.ENABLED ? input.getTotalBytesRead() : 0;
+        try {
+            if (m_executor != null && !m_lazy && mask == null && m_recycler == null) {
+                ParallelDecoder decoder = new ParallelDecoder(m_reflect.getFields(), m_executor);
+                m_reflect.merge(m_object, input, null, false, null, decoder);
+                decoder.finish(m_object);
+            } else if (m_codec != null && !m_lazy && mask == null && m_recycler == null) {
+                m_codec.merge(m_object, input);
+            } else {
+                m_reflect.merge(m_object, input, mask, m_lazy, m_recycler);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (PBMetrics.ENABLED) PBMetrics.decoded(m_object.getClass(), input.getTotalBytesRead() - startBytes, start);
+        } catch (IOException e) {
+            throw failed(e);
         }
     }
 
-    public PBBytes toByteString() {
-        try {
-            byte[] buf = new byte[this.size()];
-            PBCodedOutputStream output = PBCodedOutputStream.newInstance(buf);
-            this.serialize(output);
-            return PBBytes.copyFrom(buf);
-        } catch (Exception e) {
-            e.printStackTrace();
-            return PBBytes.EMPTY;
+    /**
+     * 出错时记到统计里, 给 {@link InvalidProtocolBufferException} 的字段路径加上类名, 返回 {@code e} 由调用者抛出.
+     * 不打印, 由调用者决定怎么处理.
+     */
+    private <E extends IOException> E failed(E e) {
+        if (PBMetrics.ENABLED) PBMetrics.error(m_object.getClass(), e);
+        if (e instanceof InvalidProtocolBufferException) {
+            ((InvalidProtocolBufferException) e).addFieldPath(m_object.getClass().getSimpleName());
         }
+        return e;
     }
 
-    @SuppressWarnings("unchecked")
-    private void initByClassType(Class<?> type) throws NoSuchMethodException, IllegalAccessException, InvocationTargetException, InstantiationException {
-        FieldInfoCacheItem item = FieldBuilder.Build(type);
-        m_fieldList = item.mInfo;
-        m_object = (T) item.mConstructor.newInstance();
+    public PBBytes toByteString() throws IOException {
+        long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+        List<byte[]> segments = encodeParallel();
+        if (segments != null) {
+            int size = ParallelEncoder.totalSize(segments);
+            PBBytes.CodedBuilder builder = PBBytes.newCodedBuilder(size);
+            for (int i = 0, n = segments.size(); i < n; i++) {
+                builder.getCodedOutput().writeRawBytes(segments.get(i));
+            }
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+            return builder.build();
+        }
+        MessageSizes sizes = new MessageSizes();
+        // 直接写进PBBytes自己的数组, 不再复制一次
+        int size = this.size(sizes);
+        PBBytes.CodedBuilder builder = PBBytes.newCodedBuilder(size);
+        this.serialize(builder.getCodedOutput(), sizes);
+        if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+        return builder.build();
     }
 
-    private PBInfo getFieldByTag(int tag) {
-        for (PBInfo field : m_fieldList) {
-            if (field.mTag == tag) {
-                return field;
+    public byte[] toByteArray() throws IOException {
+        long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+        List<byte[]> segments = encodeParallel();
+        if (segments != null) {
+            byte[] buf = new byte[ParallelEncoder.totalSize(segments)];
+            int pos = 0;
+            for (int i = 0, n = segments.size(); i < n; i++) {
+                byte[] segment = segments.get(i);
+                System.arraycopy(segment, 0, buf, pos, segment.length);
+                pos += segment.length;
             }
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), buf.length, start);
+            return buf;
         }
-        return null;
+        MessageSizes sizes = new MessageSizes();
+        byte[] buf = new byte[this.size(sizes)];
+        PBCodedOutputStream output = PBCodedOutputStream.newInstance(buf);
+        this.serialize(output, sizes);
+        output.checkNoSpaceLeft();
+        if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), buf.length, start);
+        return buf;
     }
 
+    /**
+     * 序列化到 {@code output}, 中间只用一个不超过 {@link PBCodedOutputStream#DEFAULT_BUFFER_SIZE} 的buffer.
+     * 不会 flush 或关闭 {@code output}.
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+        List<byte[]> segments = encodeParallel();
+        if (segments != null) {
+            for (int i = 0, n = segments.size(); i < n; i++) {
+                output.write(segments.get(i));
+            }
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), ParallelEncoder.totalSize(segments), start);
+            return;
+        }
+        MessageSizes sizes = new MessageSizes();
+        int size = this.size(sizes);
+        PBCodedOutputStream codedOutput = PBCodedOutputStream.newInstance(output,
+                Math.max(1, PBCodedOutputStream.computePreferredBufferSize(size)));
+        this.serialize(codedOutput, sizes);
+        codedOutput.flush();
+        if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+    }
 
-    @SuppressWarnings({"rawtypes", "unchecked"})
-    private void parseAndMergeField(int tag, PBInfo pbInfo, PBCodedInputStream input) throws IOException, IllegalAccessException, InstantiationException, NoSuchMethodException, InvocationTargetException {
-        if (pbInfo == null || PBWireFormat.getTagWireType(tag) != pbInfo.mType.getWireType()) {
-            input.skipField(tag);
-        } else {
-            if (pbInfo.mLabel == PBWireFormat.FieldLabel.REPEATED) {
-                List list = (List) pbInfo.mField.get(m_object);
-                if (pbInfo.mType == PBWireFormat.FieldType.MESSAGE) {
-                    // 只有message并且在List里面才需要多态的支持
-                    Class<?> cls = pbInfo.mClassType;
-                    if (pbInfo.isPolymMessage()) {
-                        int polymTag = (Integer) input.readField(PBWireFormat.FieldType.INT32);
-                        cls = pbInfo.getPolymClass(polymTag);
-                    }
-                    PBMessage msg = new PBMessage(cls);
-                    input.readMessage(msg);
-                    list.add(msg.getObject());
-                } else {
-                    list.add(input.readField(pbInfo.mType));
-                }
-            } else {
-                if (pbInfo.mType == PBWireFormat.FieldType.MESSAGE) {
-                    PBMessage msg = new PBMessage(pbInfo.mClassType);
-                    input.readMessage(msg);
-                    pbInfo.mField.set(m_object, msg.getObject());
-                } else {
-                    pbInfo.mField.set(m_object, input.readField(pbInfo.mType));
-                }
+    /**
+     * 先写 varint 长度再写内容, 可以连续写多个, 用 {@link #parseDelimitedFrom} 或 {@link PBDelimitedReader} 读.
+     * 不会 flush 或关闭 {@code output}. 连续写很多个时用 {@link PBDelimitedWriter}, 只用一个buffer.
+     */
+    public void writeDelimitedTo(OutputStream output) throws IOException {
+        PBCodedOutputStream codedOutput = PBCodedOutputStream.newInstance(output);
+        codedOutput.writeDelimited(m_codec != null ? m_codec : m_reflect, m_object);
+        codedOutput.flush();
+    }
+
+    /**
+     * 读一个 {@link #writeDelimitedTo} 写的 message, 合并到当前对象. 只从 {@code input} 读这一个 message 的字节,
+     * 后面的留给下次读. 已经到结尾时返回 false. 长度超过 {@link PBCodedInputStream#setSizeLimit(int)} 的默认值
+     * (64MB) 时不分配内存, 直接抛异常.
+     */
+    public boolean parseDelimitedFrom(InputStream input) throws IOException {
+        int firstByte = input.read();
+        if (firstByte == -1) {
+            return false;
+        }
+        int size = PBCodedInputStream.readRawVarint32(firstByte, input);
+        if (size < 0) {
+            throw InvalidProtocolBufferException.negativeSize();
+        }
+        if (size > PBCodedInputStream.DEFAULT_SIZE_LIMIT) {
+            throw InvalidProtocolBufferException.sizeLimitExceeded();
+        }
+        byte[] buf = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            int n = input.read(buf, pos, size - pos);
+            if (n == -1) {
+                throw InvalidProtocolBufferException.truncatedMessage();
             }
+            pos += n;
         }
+        parse(PBCodedInputStream.newInstance(buf));
+        return true;
     }
-}
 
+    /**
+     * 序列化到 {@code buffer} 的当前位置, 完成后 position 前移. 空间不够时抛
+     * {@link BufferOverflowException}, buffer 不变.
+     */
+    public void writeTo(ByteBuffer buffer) throws IOException {
+        long start = PBMetrics.ENABLED ? PBMetrics.start() : 0;
+        List<byte[]> segments = encodeParallel();
+        if (segments != null) {
+            int size = ParallelEncoder.totalSize(segments);
+            if (buffer.remaining() < size) {
+                throw new BufferOverflowException();
+            }
+            for (int i = 0, n = segments.size(); i < n; i++) {
+                buffer.put(segments.get(i));
+            }
+            if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+            return;
+        }
+        MessageSizes sizes = new MessageSizes();
+        int size = this.size(sizes);
+        if (buffer.remaining() < size) {
+            throw new BufferOverflowException();
+        }
+        PBCodedOutputStream codedOutput = PBCodedOutputStream.newInstance(buffer);
+        this.serialize(codedOutput, sizes);
+        codedOutput.flush();
+        if (PBMetrics.ENABLED) PBMetrics.encoded(m_object.getClass(), size, start);
+    }
 
+    @SuppressWarnings("unchecked")
+    private void initByClassType(Class<?> type) throws NoSuchMethodException, InvalidProtocolBufferException {
+        FieldInfoCacheItem item = FieldBuilder.Build(type);
+        m_codec = (PBCodec<T>) item.mCodec;
+        m_reflect = (ReflectCodec<T>) item.mReflectCodec;
+        m_object = m_reflect.newInstance();
+    }
+}
@@ -0,0 +1,235 @@
+package pb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * 按序号随机访问的 message 日志文件.
+ * <p/>
+ * 数据文件里每条记录是带 varint 长度前缀的 message, 格式同 {@link PBDelimitedWriter}, 通过 {@link FileChannel} 追加.
+ * 旁边的 {@code 文件名.idx} 按顺序保存每条记录的起始位置 (每条 8 字节), 打开时整个读进内存, 所以按序号读是 O(1).
+ * 读的时候把数据文件按 {@link #SEGMENT_SIZE} 分段 map 到内存, 直接在 map 出来的 buffer 上解析, 不复制.
+ * <p/>
+ * 打开时检查最后一条记录: 上次写到一半的记录会被截掉, 缺少的索引会按数据文件补上, 索引文件不存在时整个重建.
+ * 所有方法都加了锁, 可以在多个线程之间共享.
+ */
+public final class PBMessageLog<T> implements Closeable {
+    public static final String INDEX_SUFFIX = ".idx";
+    // 每段 map 的大小, 跨段的记录单独 map
+    static final int SEGMENT_SIZE = 1 << 30;
+    private static final int OFFSET_SIZE = 8;
+    private static final int MIN_INDEX_CAPACITY = 64;
+
+    private final PBCodec<T> mCodec;
+    private final RandomAccessFile mDataFile;
+    private final RandomAccessFile mIndexFile;
+    private final FileChannel mData;
+    private final FileChannel mIndex;
+    // 每条记录的起始位置, 下标是序号
+    private long[] mOffsets;
+    private int mCount;
+    // 数据文件的长度, 也是下一条记录的起始位置
+    private long mEnd;
+    private final ArrayList<MappedByteBuffer> mSegments = new ArrayList<MappedByteBuffer>();
+    // 追加时复用的buffer
+    private byte[] mWriteBuffer = new byte[PBCodedOutputStream.DEFAULT_BUFFER_SIZE];
+    private final ByteBuffer mOffsetBuffer = ByteBuffer.allocate(OFFSET_SIZE);
+
+    public PBMessageLog(File file, Class<T> type) throws IOException {
+        mCodec = FieldBuilder.getCodec(type);
+        mDataFile = new RandomAccessFile(file, "rw");
+        mIndexFile = new RandomAccessFile(new File(file.getPath() + INDEX_SUFFIX), "rw");
+        mData = mDataFile.getChannel();
+        mIndex = mIndexFile.getChannel();
+        try {
+            recover();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * 记录条数.
+     */
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * 追加一条记录, 返回它的序号. 只写到操作系统, 要落盘时调用 {@link #sync()}.
+     */
+    public synchronized int append(T message) throws IOException {
+        final int bodySize = mCodec.size(message);
+        final int size = PBCodedOutputStream.computeRawVarint32Size(bodySize) + bodySize;
+        if (mWriteBuffer.length < size) {
+            mWriteBuffer = new byte[Math.max(size, mWriteBuffer.length * 2)];
+        }
+        final PBCodedOutputStream output = PBCodedOutputStream.newInstance(mWriteBuffer, 0, size);
+        output.writeDelimited(mCodec, message);
+        output.flush();
+        writeFully(mData, ByteBuffer.wrap(mWriteBuffer, 0, size), mEnd);
+        addOffset(mEnd);
+        writeOffset(mCount - 1);
+        mEnd += size;
+        return mCount - 1;
+    }
+
+    /**
+     * 读第 {@code ordinal} 条记录.
+     *
+     * @throws IndexOutOfBoundsException 序号不在 [0, size) 内
+     */
+    public synchronized T get(int ordinal) throws IOException {
+        if (ordinal < 0 || ordinal >= mCount) {
+            throw new IndexOutOfBoundsException("ordinal " + ordinal + ", size " + mCount);
+        }
+        final long start = mOffsets[ordinal];
+        final long end = ordinal + 1 < mCount ? mOffsets[ordinal + 1] : mEnd;
+        return PBCodedInputStream.newInstance(map(start, end)).readMessage(mCodec);
+    }
+
+    /**
+     * 把数据和索引写到磁盘.
+     */
+    public synchronized void sync() throws IOException {
+        mData.force(false);
+        mIndex.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mSegments.clear();
+        try {
+            mDataFile.close();
+        } finally {
+            mIndexFile.close();
+        }
+    }
+
+    /**
+     * 返回 [start, end) 这段数据, 不跨段时直接用段的 map.
+     */
+    private ByteBuffer map(long start, long end) throws IOException {
+        final int segment = (int) (start / SEGMENT_SIZE);
+        final long base = (long) segment * SEGMENT_SIZE;
+        if (end > base + SEGMENT_SIZE) {
+            return mData.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        }
+        while (mSegments.size() <= segment) {
+            mSegments.add(null);
+        }
+        MappedByteBuffer buffer = mSegments.get(segment);
+        if (buffer == null || base + buffer.capacity() < end) {
+            // 文件变长了, 重新 map 到当前结尾
+            buffer = mData.map(FileChannel.MapMode.READ_ONLY, base, Math.min(mEnd - base, SEGMENT_SIZE));
+            mSegments.set(segment, buffer);
+        }
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) (end - base));
+        slice.position((int) (start - base));
+        return slice;
+    }
+
+    private void addOffset(long offset) {
+        if (mOffsets == null || mCount == mOffsets.length) {
+            final long[] offsets = new long[Math.max(MIN_INDEX_CAPACITY, mCount * 2)];
+            if (mOffsets != null) {
+                System.arraycopy(mOffsets, 0, offsets, 0, mCount);
+            }
+            mOffsets = offsets;
+        }
+        mOffsets[mCount++] = offset;
+    }
+
+    private void writeOffset(int ordinal) throws IOException {
+        mOffsetBuffer.clear();
+        mOffsetBuffer.putLong(mOffsets[ordinal]);
+        mOffsetBuffer.flip();
+        writeFully(mIndex, mOffsetBuffer, (long) ordinal * OFFSET_SIZE);
+    }
+
+    /**
+     * 读入索引, 再从最后一条已知的记录开始扫描数据文件: 补上缺少的索引, 截掉写到一半的记录.
+     */
+    private void recover() throws IOException {
+        final long dataSize = mData.size();
+        final int indexed = (int) Math.min(mIndex.size() / OFFSET_SIZE, Integer.MAX_VALUE);
+        final ByteBuffer index = ByteBuffer.allocate(indexed * OFFSET_SIZE);
+        readFully(mIndex, index, 0);
+        index.flip();
+        long previous = -1;
+        for (int i = 0; i < indexed; i++) {
+            final long offset = index.getLong();
+            if (offset <= previous || offset >= dataSize) {
+                // 索引和数据对不上, 后面的按数据文件重建
+                break;
+            }
+            addOffset(offset);
+            previous = offset;
+        }
+
+        // 最后一条也可能没写完, 从它开始重新检查
+        long pos = 0;
+        if (mCount > 0) {
+            pos = mOffsets[--mCount];
+        }
+        final int valid = mCount;
+        final ByteBuffer prefix = ByteBuffer.allocate(5);
+        while (pos < dataSize) {
+            prefix.clear();
+            readFully(mData, prefix, pos);
+            prefix.flip();
+            final long length = readVarint(prefix);
+            final long recordEnd = pos + prefix.position() + length;
+            if (length < 0 || recordEnd > dataSize) {
+                break;
+            }
+            addOffset(pos);
+            pos = recordEnd;
+        }
+        mEnd = pos;
+        if (pos < dataSize) {
+            mData.truncate(pos);
+        }
+        mIndex.truncate((long) valid * OFFSET_SIZE);
+        for (int i = valid; i < mCount; i++) {
+            writeOffset(i);
+        }
+    }
+
+    /**
+     * 从 {@code buffer} 读一个 varint 长度, 不完整时返回 -1.
+     */
+    private static long readVarint(ByteBuffer buffer) {
+        long result = 0;
+        for (int shift = 0; shift < 35 && buffer.hasRemaining(); shift += 7) {
+            final byte b = buffer.get();
+            result |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return result <= Integer.MAX_VALUE ? result : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) break;
+            position += n;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
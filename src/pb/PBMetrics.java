@@ -0,0 +1,73 @@
+package pb;
+
+/**
+ * 统计的开关和入口.
+ * <p/>
+ * {@link #ENABLED} 在类加载时由系统属性 {@code pb.metrics} 决定 ({@code -Dpb.metrics=true}), 之后不能改.
+ * 各处埋点都写成 {@code if (PBMetrics.ENABLED) ...}, 关闭时 JIT 把它当常量, 整段代码被去掉;
+ * 打开后没有设置 listener 时也只多一次 volatile 读.
+ */
+public final class PBMetrics {
+    public static final boolean ENABLED = Boolean.getBoolean("pb.metrics");
+
+    private static volatile PBMetricsListener m_listener;
+
+    private PBMetrics() {
+    }
+
+    /**
+     * 设置统计回调, null 表示不统计. {@link #ENABLED} 为 false 时不会被调用.
+     */
+    public static void setListener(PBMetricsListener listener) {
+        m_listener = listener;
+    }
+
+    public static PBMetricsListener getListener() {
+        return m_listener;
+    }
+
+    /**
+     * 开始计时, 没有 listener 时返回 0, 不取时间.
+     */
+    static long start() {
+        return m_listener != null ? System.nanoTime() : 0;
+    }
+
+    static void encoded(Class<?> type, int bytes, long start) {
+        PBMetricsListener listener = m_listener;
+        if (listener != null && start != 0) {
+            listener.onEncode(type, bytes, System.nanoTime() - start);
+        }
+    }
+
+    static void decoded(Class<?> type, int bytes, long start) {
+        PBMetricsListener listener = m_listener;
+        if (listener != null && start != 0) {
+            listener.onDecode(type, bytes, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 生成的codec跳过不认识的字段时也调用这里, 所以是 public.
+     */
+    public static void unknownField(Class<?> type, int fieldNumber) {
+        PBMetricsListener listener = m_listener;
+        if (listener != null) {
+            listener.onUnknownField(type, fieldNumber);
+        }
+    }
+
+    static void schemaLookup(Class<?> type, boolean hit) {
+        PBMetricsListener listener = m_listener;
+        if (listener != null) {
+            listener.onSchemaLookup(type, hit);
+        }
+    }
+
+    static void error(Class<?> type, Throwable error) {
+        PBMetricsListener listener = m_listener;
+        if (listener != null) {
+            listener.onError(type, error);
+        }
+    }
+}
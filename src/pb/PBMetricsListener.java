@@ -0,0 +1,33 @@
+package pb;
+
+/**
+ * 编解码的统计回调, 用 {@link PBMetrics#setListener(PBMetricsListener)} 设置, 默认实现见 {@link PBMetricsRegistry}.
+ * <p/>
+ * 在编解码的线程上直接调用, 实现要线程安全并且尽量快, 不能抛异常.
+ */
+public interface PBMetricsListener {
+    /**
+     * {@link PBMessage} 序列化完一个 {@code type} 对象, 写了 {@code bytes} 字节, 用时 {@code nanos}.
+     */
+    void onEncode(Class<?> type, int bytes, long nanos);
+
+    /**
+     * {@link PBMessage} 解析完一个 {@code type} 对象, 读了 {@code bytes} 字节, 用时 {@code nanos}.
+     */
+    void onDecode(Class<?> type, int bytes, long nanos);
+
+    /**
+     * 解析 {@code type} 时跳过了一个不认识的字段.
+     */
+    void onUnknownField(Class<?> type, int fieldNumber);
+
+    /**
+     * {@link FieldBuilder} 查 {@code type} 的 schema, {@code hit} 表示缓存里已经有了.
+     */
+    void onSchemaLookup(Class<?> type, boolean hit);
+
+    /**
+     * 编解码 {@code type} 时出错.
+     */
+    void onError(Class<?> type, Throwable error);
+}
@@ -0,0 +1,213 @@
+package pb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 按类汇总统计的 {@link PBMetricsListener}, 全部用原子计数, 不加锁.
+ * <pre>
+ * PBMetricsRegistry registry = new PBMetricsRegistry();
+ * PBMetrics.setListener(registry);
+ * ...
+ * PBMetricsRegistry.Stats stats = registry.getStats(Foo.class);
+ * </pre>
+ * Android 上没有 JMX, 需要导出时定期读 {@link #getAll()} 或 {@link #toString()}.
+ */
+public final class PBMetricsRegistry implements PBMetricsListener {
+    private final ConcurrentHashMap<Class<?>, Stats> mStats = new ConcurrentHashMap<Class<?>, Stats>();
+    private final AtomicLong mSchemaHits = new AtomicLong();
+    private final AtomicLong mSchemaMisses = new AtomicLong();
+
+    /**
+     * {@code type} 的统计, 还没有时返回 null. 返回的对象随统计更新.
+     */
+    public Stats getStats(Class<?> type) {
+        return mStats.get(type);
+    }
+
+    public Map<Class<?>, Stats> getAll() {
+        return Collections.unmodifiableMap(mStats);
+    }
+
+    public long getSchemaHitCount() {
+        return mSchemaHits.get();
+    }
+
+    public long getSchemaMissCount() {
+        return mSchemaMisses.get();
+    }
+
+    public void reset() {
+        mStats.clear();
+        mSchemaHits.set(0);
+        mSchemaMisses.set(0);
+    }
+
+    private Stats stats(Class<?> type) {
+        Stats stats = mStats.get(type);
+        if (stats == null) {
+            stats = new Stats();
+            Stats old = mStats.putIfAbsent(type, stats);
+            if (old != null) {
+                stats = old;
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public void onEncode(Class<?> type, int bytes, long nanos) {
+        Stats stats = stats(type);
+        stats.mEncodeCount.incrementAndGet();
+        stats.mEncodeBytes.addAndGet(bytes);
+        stats.mEncodeLatency.record(nanos);
+    }
+
+    @Override
+    public void onDecode(Class<?> type, int bytes, long nanos) {
+        Stats stats = stats(type);
+        stats.mDecodeCount.incrementAndGet();
+        stats.mDecodeBytes.addAndGet(bytes);
+        stats.mDecodeLatency.record(nanos);
+    }
+
+    @Override
+    public void onUnknownField(Class<?> type, int fieldNumber) {
+        stats(type).mUnknownFields.incrementAndGet();
+    }
+
+    @Override
+    public void onSchemaLookup(Class<?> type, boolean hit) {
+        (hit ? mSchemaHits : mSchemaMisses).incrementAndGet();
+    }
+
+    @Override
+    public void onError(Class<?> type, Throwable error) {
+        stats(type).mErrors.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("schema cache: ").append(mSchemaHits.get()).append(" hits, ")
+                .append(mSchemaMisses.get()).append(" misses\n");
+        for (Map.Entry<Class<?>, Stats> entry : mStats.entrySet()) {
+            sb.append(entry.getKey().getName()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 一个类的统计.
+     */
+    public static final class Stats {
+        final AtomicLong mEncodeCount = new AtomicLong();
+        final AtomicLong mEncodeBytes = new AtomicLong();
+        final AtomicLong mDecodeCount = new AtomicLong();
+        final AtomicLong mDecodeBytes = new AtomicLong();
+        final AtomicLong mUnknownFields = new AtomicLong();
+        final AtomicLong mErrors = new AtomicLong();
+        final Histogram mEncodeLatency = new Histogram();
+        final Histogram mDecodeLatency = new Histogram();
+
+        Stats() {
+        }
+
+        public long getEncodeCount() {
+            return mEncodeCount.get();
+        }
+
+        public long getEncodeBytes() {
+            return mEncodeBytes.get();
+        }
+
+        public long getDecodeCount() {
+            return mDecodeCount.get();
+        }
+
+        public long getDecodeBytes() {
+            return mDecodeBytes.get();
+        }
+
+        public long getUnknownFieldCount() {
+            return mUnknownFields.get();
+        }
+
+        public long getErrorCount() {
+            return mErrors.get();
+        }
+
+        /**
+         * 序列化耗时, 纳秒.
+         */
+        public Histogram getEncodeLatency() {
+            return mEncodeLatency;
+        }
+
+        /**
+         * 解析耗时, 纳秒.
+         */
+        public Histogram getDecodeLatency() {
+            return mDecodeLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "encode " + getEncodeCount() + " (" + getEncodeBytes() + " bytes, p50 " + mEncodeLatency.percentile(0.5)
+                    + "ns, p99 " + mEncodeLatency.percentile(0.99) + "ns), decode " + getDecodeCount()
+                    + " (" + getDecodeBytes() + " bytes, p50 " + mDecodeLatency.percentile(0.5)
+                    + "ns, p99 " + mDecodeLatency.percentile(0.99) + "ns), unknown fields " + getUnknownFieldCount()
+                    + ", errors " + getErrorCount();
+        }
+    }
+
+    /**
+     * 按 2 的幂分桶的直方图, 第 i 个桶是 [2^(i-1), 2^i), 第 0 个桶只有 0.
+     */
+    public static final class Histogram {
+        public static final int BUCKETS = 64;
+
+        private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+
+        Histogram() {
+        }
+
+        void record(long value) {
+            mCounts.incrementAndGet(value <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value)));
+        }
+
+        public long getCount(int bucket) {
+            return mCounts.get(bucket);
+        }
+
+        public long getTotalCount() {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += mCounts.get(i);
+            }
+            return total;
+        }
+
+        /**
+         * 第 {@code p} (0~1) 分位所在桶的上界, 没有数据时返回 0.
+         */
+        public long percentile(double p) {
+            long total = getTotalCount();
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(p * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += mCounts.get(i);
+                if (seen >= Math.max(rank, 1)) {
+                    return i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
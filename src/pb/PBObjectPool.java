@@ -0,0 +1,52 @@
+package pb;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link PBRecycler} 的默认实现, 按类分别保存回收的对象, 线程安全.
+ * <p/>
+ * 每个类最多留 {@code maxPerClass} 个, 多出来的交给 GC.
+ */
+public final class PBObjectPool implements PBRecycler {
+    public static final int DEFAULT_MAX_PER_CLASS = 64;
+
+    private final int mMaxPerClass;
+    private final ConcurrentHashMap<Class<?>, ArrayList<Object>> mFree = new ConcurrentHashMap<Class<?>, ArrayList<Object>>();
+
+    public PBObjectPool() {
+        this(DEFAULT_MAX_PER_CLASS);
+    }
+
+    public PBObjectPool(int maxPerClass) {
+        mMaxPerClass = maxPerClass;
+    }
+
+    @Override
+    public Object obtain(Class<?> type) {
+        final ArrayList<Object> free = mFree.get(type);
+        if (free == null) return null;
+        synchronized (free) {
+            final int size = free.size();
+            return size > 0 ? free.remove(size - 1) : null;
+        }
+    }
+
+    @Override
+    public void recycle(Object object) {
+        final Class<?> type = object.getClass();
+        ArrayList<Object> free = mFree.get(type);
+        if (free == null) {
+            free = new ArrayList<Object>();
+            final ArrayList<Object> old = mFree.putIfAbsent(type, free);
+            if (old != null) {
+                free = old;
+            }
+        }
+        synchronized (free) {
+            if (free.size() < mMaxPerClass) {
+                free.add(object);
+            }
+        }
+    }
+}
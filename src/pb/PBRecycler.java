@@ -0,0 +1,16 @@
+package pb;
+
+/**
+ * 解析嵌套 message 时复用对象, 见 {@link PBMessage#setRecycler(PBRecycler)}.
+ */
+public interface PBRecycler {
+    /**
+     * 取一个 {@code type} 类型的旧对象, 没有时返回 null, 由调用者新建. 取出的对象由 {@link PBMessage} 清空.
+     */
+    Object obtain(Class<?> type);
+
+    /**
+     * 回收不再使用的对象, 之后调用者不能再用它.
+     */
+    void recycle(Object object);
+}
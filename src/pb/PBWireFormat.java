@@ -51,6 +51,10 @@ public final class PBWireFormat {
     static final int TAG_TYPE_BITS = 3;
     static final int TAG_TYPE_MASK = (1 << TAG_TYPE_BITS) - 1;
 
+    // Field numbers of the key and value inside a map entry.
+    static final int MAP_KEY_FIELD_NUMBER = 1;
+    static final int MAP_VALUE_FIELD_NUMBER = 2;
+
     // Do not allow instantiation.
     private PBWireFormat() {
     }
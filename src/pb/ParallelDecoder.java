@@ -0,0 +1,128 @@
+package pb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 并行解析, 见 {@link PBMessage#setParallelExecutor(Executor)}.
+ * <p/>
+ * 分两步: {@link ReflectCodec} 解析最外层时, repeated message 字段的元素只用 {@link PBCodedInputStream#readSlice}
+ * 记下位置跳过去, 不解析; 整个 message 扫完之后 {@link #finish} 把每个字段的元素按 {@link ParallelEncoder#CHUNK_SIZE}
+ * 分段交给 executor 解析, 再按原来的顺序加到字段的 List 里. 元素少于 {@link ParallelEncoder#MIN_PARALLEL_SIZE}
+ * 的字段在调用线程上解析. 输入是 byte 数组时元素直接引用原数组, 不复制.
+ */
+final class ParallelDecoder {
+    private final List<PBInfo> mFields;
+    private final Executor mExecutor;
+    // 下标是字段位置, 每个元素的 slice
+    private final List<LazySlice>[] mSlices;
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    ParallelDecoder(List<PBInfo> fields, Executor executor) {
+        mFields = fields;
+        mExecutor = executor;
+        mSlices = new List[fields.size()];
+    }
+
+    /**
+     * 这个字段的元素是否先记下来, 之后再并行解析.
+     */
+    static boolean isDeferred(PBInfo info, int tag) {
+        return info.mType == PBWireFormat.FieldType.MESSAGE && info.mLabel == PBWireFormat.FieldLabel.REPEATED
+                && !info.mMap && !info.mArray && !info.mLazy
+                && PBWireFormat.getTagWireType(tag) == PBWireFormat.WIRETYPE_LENGTH_DELIMITED;
+    }
+
+    /**
+     * 记下第 {@code pos} 个字段的一个元素, 跳过它的内容.
+     */
+    void add(int pos, PBInfo info, PBCodedInputStream input) throws IOException {
+        Class<?> cls = info.mClassType;
+        int polymTag = -1;
+        if (info.isPolymMessage()) {
+            polymTag = input.readInt32();
+            cls = info.getPolymClass(polymTag);
+        }
+        if (mSlices[pos] == null) {
+            mSlices[pos] = new ArrayList<LazySlice>();
+        }
+        mSlices[pos].add(input.readSlice(info.mType, cls, polymTag, false));
+    }
+
+    /**
+     * 解析记下的元素, 按顺序加到 {@code object} 的各个字段里.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    void finish(Object object) throws IOException {
+        List<FutureTask<Object[]>> tasks = null;
+        int pos = 0;
+        try {
+            for (int n = mSlices.length; pos < n; pos++) {
+                List<LazySlice> slices = mSlices[pos];
+                if (slices == null) {
+                    continue;
+                }
+                List list = (List) mFields.get(pos).mAccessor.get(object);
+                if (list instanceof ArrayList) {
+                    ((ArrayList) list).ensureCapacity(list.size() + slices.size());
+                }
+                int size = slices.size();
+                if (size < ParallelEncoder.MIN_PARALLEL_SIZE) {
+                    for (int i = 0; i < size; i++) {
+                        list.add(slices.get(i).decodeMessage());
+                    }
+                    continue;
+                }
+                tasks = new ArrayList<FutureTask<Object[]>>();
+                for (int from = 0; from < size; from += ParallelEncoder.CHUNK_SIZE) {
+                    FutureTask<Object[]> task = new FutureTask<Object[]>(
+                            new ChunkTask(slices, from, Math.min(size, from + ParallelEncoder.CHUNK_SIZE)));
+                    mExecutor.execute(task);
+                    tasks.add(task);
+                }
+                for (int i = 0, m = tasks.size(); i < m; i++) {
+                    Object[] objects = ParallelEncoder.await(tasks.get(i));
+                    for (Object obj : objects) {
+                        list.add(obj);
+                    }
+                }
+                tasks = null;
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType().addFieldPath(mFields.get(pos).mField.getName());
+        } catch (InvalidProtocolBufferException e) {
+            throw e.addFieldPath(mFields.get(pos).mField.getName());
+        } finally {
+            // 出错时剩下的任务不用再跑了
+            ParallelEncoder.cancel(tasks);
+        }
+    }
+
+    /**
+     * 解析 [from, to) 这一段元素.
+     */
+    private static final class ChunkTask implements Callable<Object[]> {
+        private final List<LazySlice> mSlices;
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkTask(List<LazySlice> slices, int from, int to) {
+            mSlices = slices;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        public Object[] call() throws IOException {
+            Object[] objects = new Object[mTo - mFrom];
+            for (int i = mFrom; i < mTo; i++) {
+                objects[i - mFrom] = mSlices.get(i).decodeMessage();
+            }
+            return objects;
+        }
+    }
+}
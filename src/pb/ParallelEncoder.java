@@ -0,0 +1,198 @@
+package pb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 并行编码, 见 {@link PBMessage#setParallelExecutor(Executor)}.
+ * <p/>
+ * 只拆最外层元素很多的 repeated message 字段: 每 {@link #CHUNK_SIZE} 个元素一个任务, 在自己的 buffer 里
+ * 先算长度再编码; 其余字段由调用线程按顺序各自编码成一段. 所有段按字段顺序拼起来, 和串行的结果完全一样.
+ * <p/>
+ * 调用线程编完自己的字段之后按顺序等各个任务, 还没开始的直接在调用线程上跑, 所以 executor 满了或者就是
+ * 调用者自己所在的线程池时也不会死锁. 编码期间不能修改对象.
+ */
+final class ParallelEncoder {
+    // 元素少于这个数的字段串行编码
+    static final int MIN_PARALLEL_SIZE = 2048;
+    static final int CHUNK_SIZE = 1024;
+
+    private ParallelEncoder() {
+    }
+
+    private static boolean isParallel(PBInfo info, Object object) throws IllegalAccessException {
+        if (info.mLabel != PBWireFormat.FieldLabel.REPEATED || info.mType != PBWireFormat.FieldType.MESSAGE
+                || info.mArray || info.mMap) {
+            return false;
+        }
+        List<?> list = (List<?>) info.mAccessor.get(object);
+        return list != null && list.size() >= MIN_PARALLEL_SIZE;
+    }
+
+    /**
+     * {@code object} 有没有值得并行编码的字段.
+     */
+    static boolean hasParallelField(List<PBInfo> fields, Object object) throws InvalidProtocolBufferException {
+        try {
+            for (int i = 0, n = fields.size(); i < n; i++) {
+                if (isParallel(fields.get(i), object)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+    }
+
+    /**
+     * 按字段顺序编码 {@code object}, 返回的各段依次拼起来就是完整的 message (不含外层的 tag 和长度).
+     */
+    static List<byte[]> encode(List<PBInfo> fields, Object object, Executor executor) throws IOException {
+        int n = fields.size();
+        // 先把所有任务交出去, 调用线程编其余字段时它们已经在跑了
+        List<List<FutureTask<byte[]>>> tasks = new ArrayList<List<FutureTask<byte[]>>>(n);
+        int i = 0;
+        try {
+            for (; i < n; i++) {
+                PBInfo info = fields.get(i);
+                List<FutureTask<byte[]>> fieldTasks = null;
+                if (isParallel(info, object)) {
+                    List<?> list = (List<?>) info.mAccessor.get(object);
+                    fieldTasks = new ArrayList<FutureTask<byte[]>>();
+                    for (int from = 0, size = list.size(); from < size; from += CHUNK_SIZE) {
+                        FutureTask<byte[]> task = new FutureTask<byte[]>(
+                                new ChunkTask(info, list, from, Math.min(size, from + CHUNK_SIZE)));
+                        executor.execute(task);
+                        fieldTasks.add(task);
+                    }
+                }
+                tasks.add(fieldTasks);
+            }
+
+            List<byte[]> segments = new ArrayList<byte[]>();
+            MessageSizes sizes = new MessageSizes();
+            for (i = 0; i < n; i++) {
+                PBInfo info = fields.get(i);
+                List<FutureTask<byte[]>> fieldTasks = tasks.get(i);
+                if (fieldTasks == null) {
+                    sizes.clear();
+                    byte[] bytes = new byte[ReflectCodec.computeFieldSize(info, object, sizes)];
+                    if (bytes.length > 0) {
+                        PBCodedOutputStream output = PBCodedOutputStream.newInstance(bytes);
+                        output.setMessageSizes(sizes);
+                        ReflectCodec.writeField(info, object, output);
+                        output.checkNoSpaceLeft();
+                        segments.add(bytes);
+                    }
+                } else {
+                    for (int j = 0, m = fieldTasks.size(); j < m; j++) {
+                        segments.add(await(fieldTasks.get(j)));
+                    }
+                }
+            }
+            return segments;
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType().addFieldPath(fields.get(i).mField.getName());
+        } catch (InvalidProtocolBufferException e) {
+            throw e.addFieldPath(fields.get(i).mField.getName());
+        } finally {
+            // 出错时没用到的任务不用再跑了
+            for (int j = 0; j < tasks.size(); j++) {
+                cancel(tasks.get(j));
+            }
+        }
+    }
+
+    /**
+     * 等 {@code task} 完成并返回结果. 还没开始的直接在调用线程上跑, 已经在跑或者跑完的不会再跑.
+     * 任务里的异常原样抛出.
+     */
+    static <V> V await(FutureTask<V> task) throws IOException {
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    static void cancel(List<? extends FutureTask<?>> tasks) {
+        if (tasks != null) {
+            for (int i = 0, n = tasks.size(); i < n; i++) {
+                tasks.get(i).cancel(false);
+            }
+        }
+    }
+
+    static int totalSize(List<byte[]> segments) {
+        int size = 0;
+        for (int i = 0, n = segments.size(); i < n; i++) {
+            size += segments.get(i).length;
+        }
+        return size;
+    }
+
+    /**
+     * 编码 repeated 字段 [from, to) 这一段元素, 和串行时写出来的字节一样.
+     */
+    private static final class ChunkTask implements Callable<byte[]> {
+        private final PBInfo mInfo;
+        private final List<?> mList;
+        private final int mFrom;
+        private final int mTo;
+
+        ChunkTask(PBInfo info, List<?> list, int from, int to) {
+            mInfo = info;
+            mList = list;
+            mFrom = from;
+            mTo = to;
+        }
+
+        private Object element(int index) {
+            return mList instanceof LazyList ? ((LazyList<?>) mList).getRaw(index) : mList.get(index);
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            MessageSizes sizes = new MessageSizes();
+            int size = 0;
+            for (int i = mFrom; i < mTo; i++) {
+                Object obj = element(i);
+                size += obj instanceof LazySlice
+                        ? ((LazySlice) obj).computeSize(mInfo.mTag)
+                        : ReflectCodec.computeElementSize(mInfo, obj, sizes);
+            }
+            byte[] bytes = new byte[size];
+            PBCodedOutputStream output = PBCodedOutputStream.newInstance(bytes);
+            output.setMessageSizes(sizes);
+            for (int i = mFrom; i < mTo; i++) {
+                Object obj = element(i);
+                if (obj instanceof LazySlice) {
+                    output.writeLazySlice(mInfo.mTag, (LazySlice) obj);
+                } else {
+                    ReflectCodec.writeElement(mInfo, obj, output);
+                }
+            }
+            output.checkNoSpaceLeft();
+            return bytes;
+        }
+    }
+}
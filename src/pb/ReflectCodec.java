@@ -0,0 +1,517 @@
+package pb;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按 {@link FieldBuilder} 的 schema 用反射实现的 {@link PBCodec}, 类没有生成的codec时用它.
+ * <p/>
+ * 每个类一个, 随 schema 一起缓存, 不保存任何状态, 可以在多个线程之间共享. 嵌套的 message 直接交给
+ * 对应类的 codec 处理, 不创建 {@link PBMessage}.
+ */
+final class ReflectCodec<T> implements PBCodec<T> {
+    private final List<PBInfo> mFieldList;
+    private final FieldIndex mFieldIndex;
+    private final Constructor<?> mConstructor;
+
+    ReflectCodec(FieldInfoCacheItem item) {
+        mFieldList = item.mInfo;
+        mFieldIndex = item.mIndex;
+        mConstructor = item.mConstructor;
+    }
+
+    List<PBInfo> getFields() {
+        return mFieldList;
+    }
+
+    @SuppressWarnings("unchecked")
+    T newInstance() throws InvalidProtocolBufferException {
+        try {
+            return (T) mConstructor.newInstance();
+        } catch (Exception e) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+    }
+
+    @Override
+    public int size(T object) throws InvalidProtocolBufferException {
+        return size(object, null);
+    }
+
+    /**
+     * 计算长度, {@code sizes} 不为null时顺便按先序记下每个嵌套message的长度, 给 {@link #encode} 用.
+     */
+    @Override
+    public int size(T object, MessageSizes sizes) throws InvalidProtocolBufferException {
+        int size = 0;
+        // 出错时用来标出字段路径
+        int i = 0;
+        try {
+            // 用下标遍历, 不创建Iterator
+            for (int n = mFieldList.size(); i < n; i++) {
+                size += computeFieldSize(mFieldList.get(i), object, sizes);
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType().addFieldPath(fieldName(i));
+        } catch (InvalidProtocolBufferException e) {
+            throw e.addFieldPath(fieldName(i));
+        }
+        return size;
+    }
+
+    private String fieldName(int pos) {
+        return mFieldList.get(pos).mField.getName();
+    }
+
+    /**
+     * 单个字段编码后的长度, 包括 tag.
+     */
+    static int computeFieldSize(PBInfo info, Object object, MessageSizes sizes) throws IllegalAccessException, InvalidProtocolBufferException {
+        if (info.mPrimitive) {
+            return PBCodedOutputStream.computePrimitiveFieldSize(info, object);
+        } else if (info.mArray) {
+            return PBCodedOutputStream.computeArrayFieldSize(info, info.mAccessor.get(object), sizes);
+        } else if (info.mMap) {
+            return PBCodedOutputStream.computeMapFieldSize(info, (Map<?, ?>) info.mAccessor.get(object), sizes);
+        } else if (info.mLabel == PBWireFormat.FieldLabel.REPEATED) {
+            List<?> list = (List<?>) info.mAccessor.get(object);
+            if (info.mPacked) {
+                return PBCodedOutputStream.computePackedFieldSize(info.mType, info.mTag, list, sizes);
+            }
+            int size = 0;
+            if (list instanceof LazyList) {
+                LazyList<?> lazyList = (LazyList<?>) list;
+                for (int j = 0, m = lazyList.size(); j < m; j++) {
+                    Object obj = lazyList.getRaw(j);
+                    if (obj instanceof LazySlice) {
+                        size += ((LazySlice) obj).computeSize(info.mTag);
+                    } else {
+                        size += computeElementSize(info, obj, sizes);
+                    }
+                }
+            } else {
+                for (int j = 0, m = list.size(); j < m; j++) {
+                    size += computeElementSize(info, list.get(j), sizes);
+                }
+            }
+            return size;
+        } else if (info.mLazy) {
+            PBLazy<?> lazy = (PBLazy<?>) info.mAccessor.get(object);
+            if (lazy == null) {
+                return 0;
+            }
+            return lazy.isLazy() ? lazy.getSlice().computeSize(info.mTag) : computeElementSize(info, lazy.getValue(), sizes);
+        } else {
+            return computeElementSize(info, info.mAccessor.get(object), sizes);
+        }
+    }
+
+    static int computeElementSize(PBInfo info, Object obj, MessageSizes sizes) throws InvalidProtocolBufferException {
+        if (obj == null) {
+            return 0;
+        } else if (info.mLabel == PBWireFormat.FieldLabel.REPEATED && info.isPolymMessage()) {
+            // 扩展多态功能, 只有List里面的message才写多态的tag
+            int polymTag = info.getPolymTag(obj.getClass());
+            return PBCodedOutputStream.computeDynamicMessageSize(info.mTag, info.getNestedCodec(obj.getClass()), obj, polymTag, sizes);
+        } else if (info.mType == PBWireFormat.FieldType.MESSAGE) {
+            return PBCodedOutputStream.computeMessageSize(info.mTag, info.getNestedCodec(obj.getClass()), obj, sizes);
+        } else {
+            return PBCodedOutputStream.computeFieldSize(info.mType, info.mTag, obj, sizes);
+        }
+    }
+
+    static void writeElement(PBInfo info, Object obj, PBCodedOutputStream output) throws IOException {
+        if (obj == null) {
+            return;
+        } else if (info.mLabel == PBWireFormat.FieldLabel.REPEATED && info.isPolymMessage()) {
+            // 扩展多态功能, 只有List里面的message才写多态的tag
+            int polymTag = info.getPolymTag(obj.getClass());
+            output.writeDynamicMessage(info.mTag, info.getNestedCodec(obj.getClass()), obj, polymTag);
+        } else if (info.mType == PBWireFormat.FieldType.MESSAGE) {
+            output.writeMessage(info.mTag, info.getNestedCodec(obj.getClass()), obj);
+        } else {
+            output.writeField(info.mType, info.mTag, obj);
+        }
+    }
+
+    /**
+     * 写所有字段. {@code output} 上挂着 {@link #size(Object, MessageSizes)} 记下的长度时按顺序取出来用,
+     * 否则嵌套的message重新计算长度.
+     */
+    @Override
+    public void encode(T object, PBCodedOutputStream output) throws IOException {
+        int i = 0;
+        try {
+            for (int n = mFieldList.size(); i < n; i++) {
+                writeField(mFieldList.get(i), object, output);
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType().addFieldPath(fieldName(i));
+        } catch (InvalidProtocolBufferException e) {
+            throw e.addFieldPath(fieldName(i));
+        }
+    }
+
+    /**
+     * 写单个字段, 和 {@link #computeFieldSize} 对应.
+     */
+    static void writeField(PBInfo info, Object object, PBCodedOutputStream output) throws IOException, IllegalAccessException {
+        if (info.mPrimitive) {
+            output.writePrimitiveField(info, object);
+        } else if (info.mArray) {
+            output.writeArrayField(info, info.mAccessor.get(object));
+        } else if (info.mMap) {
+            output.writeMapField(info, (Map<?, ?>) info.mAccessor.get(object));
+        } else if (info.mLabel == PBWireFormat.FieldLabel.REPEATED) {
+            List<?> list = (List<?>) info.mAccessor.get(object);
+            if (info.mPacked) {
+                output.writePackedField(info.mType, info.mTag, list);
+            } else if (list instanceof LazyList) {
+                LazyList<?> lazyList = (LazyList<?>) list;
+                for (int j = 0, m = lazyList.size(); j < m; j++) {
+                    Object obj = lazyList.getRaw(j);
+                    if (obj instanceof LazySlice) {
+                        output.writeLazySlice(info.mTag, (LazySlice) obj);
+                    } else {
+                        writeElement(info, obj, output);
+                    }
+                }
+            } else {
+                for (int j = 0, m = list.size(); j < m; j++) {
+                    writeElement(info, list.get(j), output);
+                }
+            }
+        } else if (info.mLazy) {
+            PBLazy<?> lazy = (PBLazy<?>) info.mAccessor.get(object);
+            if (lazy != null) {
+                if (lazy.isLazy()) {
+                    output.writeLazySlice(info.mTag, lazy.getSlice());
+                } else {
+                    writeElement(info, lazy.getValue(), output);
+                }
+            }
+        } else {
+            writeElement(info, info.mAccessor.get(object), output);
+        }
+    }
+
+    @Override
+    public void merge(T object, PBCodedInputStream input) throws IOException {
+        merge(object, input, null, false, null);
+    }
+
+    @Override
+    public T decode(PBCodedInputStream input) throws IOException {
+        T object = newInstance();
+        merge(object, input, null, false, null);
+        return object;
+    }
+
+    /**
+     * 同 {@link #merge(Object, PBCodedInputStream)}, 参数见 {@link PBMessage#parse(PBCodedInputStream, PBFieldMask)},
+     * {@link PBMessage#setLazyParsing(boolean)} 和 {@link PBMessage#setRecycler(PBRecycler)}.
+     */
+    void merge(T object, PBCodedInputStream input, PBFieldMask mask, boolean lazy, PBRecycler recycler) throws IOException {
+        merge(object, input, mask, lazy, recycler, null);
+    }
+
+    /**
+     * {@code deferred} 不为 null 时 repeated message 字段的元素只记下来, 不解析, 见 {@link ParallelDecoder}.
+     */
+    void merge(T object, PBCodedInputStream input, PBFieldMask mask, boolean lazy, PBRecycler recycler,
+               ParallelDecoder deferred) throws IOException {
+        // 正在解析的字段, 出错时用来标出字段路径
+        PBInfo current = null;
+        try {
+            PBFieldMask.Compiled compiled = mask != null
+                    ? mask.compile(object.getClass(), mFieldList, mFieldIndex) : null;
+            // 基本类型数组字段解析完整个message之后再写回, 见 ArrayBuilder
+            ArrayBuilder[] arrays = null;
+            int last = -1;
+            while (true) {
+                int tag = input.readTag();
+                if (tag == 0) break;
+
+                int fieldTag = PBWireFormat.getTagFieldNumber(tag);
+                int pos = mFieldIndex.find(fieldTag, last);
+                if (pos >= 0) {
+                    last = pos;
+                }
+                if (pos >= 0 && (compiled == null || compiled.mSelected[pos])) {
+                    PBInfo info = mFieldList.get(pos);
+                    current = info;
+                    if (deferred != null && ParallelDecoder.isDeferred(info, tag)) {
+                        deferred.add(pos, info, input);
+                    } else if (info.mArray) {
+                        if (arrays == null) {
+                            arrays = new ArrayBuilder[mFieldList.size()];
+                        }
+                        if (arrays[pos] == null) {
+                            arrays[pos] = new ArrayBuilder(info.mClassType, info.mAccessor.get(object));
+                        }
+                        parseArrayElement(tag, info, input, arrays[pos]);
+                    } else {
+                        parseAndMergeField(object, tag, info, input, compiled != null ? compiled.mChildren[pos] : null, lazy, recycler);
+                    }
+                    current = null;
+                } else {
+                    if (PBMetrics.ENABLED && pos < 0) PBMetrics.unknownField(object.getClass(), fieldTag);
+                    input.skipField(tag);
+                }
+            }
+            if (arrays != null) {
+                for (int i = 0; i < arrays.length; i++) {
+                    if (arrays[i] != null) {
+                        mFieldList.get(i).mAccessor.set(object, arrays[i].toArray());
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            InvalidProtocolBufferException error = InvalidProtocolBufferException.invalidJavaType();
+            throw current != null ? error.addFieldPath(current.mField.getName()) : error;
+        } catch (InvalidProtocolBufferException e) {
+            throw current != null ? e.addFieldPath(current.mField.getName()) : e;
+        }
+    }
+
+    /**
+     * 把所有字段清成java默认值, 见 {@link PBMessage#clear()}.
+     */
+    void clear(T object, PBRecycler recycler) throws InvalidProtocolBufferException {
+        try {
+            for (int i = 0, n = mFieldList.size(); i < n; i++) {
+                clearField(object, mFieldList.get(i), recycler);
+            }
+        } catch (IllegalAccessException e) {
+            throw InvalidProtocolBufferException.invalidJavaType();
+        }
+    }
+
+    private static void clearField(Object object, PBInfo info, PBRecycler recycler) throws IllegalAccessException {
+        Class<?> type = info.mField.getType();
+        if (type.isPrimitive()) {
+            if (type == Integer.TYPE) info.mAccessor.setInt(object, 0);
+            else if (type == Long.TYPE) info.mAccessor.setLong(object, 0L);
+            else if (type == Float.TYPE) info.mAccessor.setFloat(object, 0f);
+            else if (type == Double.TYPE) info.mAccessor.setDouble(object, 0.0);
+            else if (type == Boolean.TYPE) info.mAccessor.setBoolean(object, false);
+            return;
+        }
+        Object value = info.mAccessor.get(object);
+        boolean recycle = recycler != null && info.mType == PBWireFormat.FieldType.MESSAGE;
+        if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            if (recycle) {
+                boolean lazy = list instanceof LazyList;
+                for (int i = 0, n = list.size(); i < n; i++) {
+                    // 还没解析的元素不需要回收
+                    Object obj = lazy ? ((LazyList<?>) list).getRaw(i) : list.get(i);
+                    if (obj != null && !(obj instanceof LazySlice)) {
+                        recycler.recycle(obj);
+                    }
+                }
+            }
+            list.clear();
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            if (recycle) {
+                for (Object obj : map.values()) {
+                    if (obj != null) {
+                        recycler.recycle(obj);
+                    }
+                }
+            }
+            map.clear();
+        } else if (value != null) {
+            if (recycle && !info.mLazy) {
+                recycler.recycle(value);
+            }
+            info.mAccessor.set(object, null);
+        }
+    }
+
+    /**
+     * 读一个嵌套message. 没有投影, 延迟解析和 recycler 时优先用生成的codec, 否则用反射, 对象先从
+     * {@code recycler} 取.
+     */
+    private static Object readNested(PBInfo info, Class<?> cls, PBCodedInputStream input, PBFieldMask mask,
+                                     boolean lazy, PBRecycler recycler) throws IOException {
+        FieldInfoCacheItem item = info.getNestedItem(cls);
+        int oldLimit = input.enterMessage();
+        Object value;
+        if (item.mCodec != null && mask == null && !lazy && recycler == null) {
+            value = item.mCodec.decode(input);
+        } else {
+            ReflectCodec<Object> codec = item.mReflectCodec;
+            value = recycler != null ? recycler.obtain(cls) : null;
+            if (value != null) {
+                codec.clear(value, recycler);
+            } else {
+                value = codec.newInstance();
+            }
+            codec.merge(value, input, mask, lazy, recycler);
+        }
+        input.exitMessage(oldLimit);
+        return value;
+    }
+
+    private static void parseArrayElement(int tag, PBInfo info, PBCodedInputStream input, ArrayBuilder builder) throws IOException {
+        int wireType = PBWireFormat.getTagWireType(tag);
+        if (wireType == PBWireFormat.WIRETYPE_LENGTH_DELIMITED) {
+            // packed, 不管字段本身是否声明为packed都接受
+            input.readPackedArray(info.mType, builder);
+        } else if (wireType == info.mType.getWireType()) {
+            input.readArrayElement(info.mType, builder);
+        } else {
+            input.skipField(tag);
+        }
+    }
+
+    /**
+     * 读一个 map entry 放进 {@code map}. 同 protobuf, 缺少的 key/value 按默认值, 重复的 key 后面的覆盖前面的.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void parseMapEntry(PBInfo info, PBCodedInputStream input, Map map, boolean lazy, PBRecycler recycler) throws IOException {
+        int length = input.readRawVarint32();
+        int oldLimit = input.pushLimit(length);
+        Object key = null;
+        Object value = null;
+        while (true) {
+            int tag = input.readTag();
+            if (tag == 0) break;
+            int fieldNumber = PBWireFormat.getTagFieldNumber(tag);
+            int wireType = PBWireFormat.getTagWireType(tag);
+            if (fieldNumber == PBWireFormat.MAP_KEY_FIELD_NUMBER && wireType == info.mKeyType.getWireType()) {
+                key = readMapScalar(info.mKeyType, info.mKeyClass, input);
+            } else if (fieldNumber == PBWireFormat.MAP_VALUE_FIELD_NUMBER && wireType == info.mType.getWireType()) {
+                if (info.mType == PBWireFormat.FieldType.MESSAGE) {
+                    value = readNested(info, info.mClassType, input, null, lazy, recycler);
+                } else {
+                    value = readMapScalar(info.mType, info.mClassType, input);
+                }
+            } else {
+                input.skipField(tag);
+            }
+        }
+        input.popLimit(oldLimit);
+        if (key == null) {
+            key = defaultMapValue(info.mKeyType, info.mKeyClass);
+        }
+        if (value == null) {
+            value = info.mType == PBWireFormat.FieldType.MESSAGE
+                    ? info.getNestedItem(info.mClassType).mReflectCodec.newInstance()
+                    : defaultMapValue(info.mType, info.mClassType);
+        }
+        map.put(key, value);
+    }
+
+    private static Object readMapScalar(PBWireFormat.FieldType type, Class<?> cls, PBCodedInputStream input) throws IOException {
+        if (type == PBWireFormat.FieldType.UINT32) {
+            // UINT32 在java里是 long
+            return (long) input.readUInt32();
+        } else if (cls == byte[].class) {
+            return input.readByteArray();
+        }
+        return input.readField(type);
+    }
+
+    private static Object defaultMapValue(PBWireFormat.FieldType type, Class<?> cls) {
+        switch (type) {
+            case DOUBLE:
+                return 0.0;
+            case FLOAT:
+                return 0.0f;
+            case BOOL:
+                return false;
+            case STRING:
+                return "";
+            case BYTES:
+                return cls == byte[].class ? new byte[0] : PBBytes.EMPTY;
+            case INT32:
+            case FIXED32:
+            case SFIXED32:
+            case SINT32:
+            case ENUM:
+                return 0;
+            default:
+                return 0L;
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static void parseAndMergeField(Object object, int tag, PBInfo pbInfo, PBCodedInputStream input, PBFieldMask mask,
+                                           boolean lazyParsing, PBRecycler recycler) throws IOException, IllegalAccessException {
+        int wireType = PBWireFormat.getTagWireType(tag);
+        if (pbInfo.mMap) {
+            if (wireType == PBWireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                Map map = (Map) pbInfo.mAccessor.get(object);
+                if (map == null) {
+                    try {
+                        map = pbInfo.mMapConstructor.newInstance();
+                    } catch (Exception e) {
+                        throw InvalidProtocolBufferException.invalidJavaType();
+                    }
+                    pbInfo.mAccessor.set(object, map);
+                }
+                parseMapEntry(pbInfo, input, map, lazyParsing, recycler);
+            } else {
+                input.skipField(tag);
+            }
+        } else if (wireType == PBWireFormat.WIRETYPE_LENGTH_DELIMITED
+                && pbInfo.mLabel == PBWireFormat.FieldLabel.REPEATED && PBInfo.isPackable(pbInfo.mType)) {
+            // packed, 不管字段本身是否声明为packed都接受
+            input.readPackedField(pbInfo.mType, (List) pbInfo.mAccessor.get(object));
+        } else if (wireType != pbInfo.mType.getWireType()) {
+            input.skipField(tag);
+        } else if (pbInfo.mPrimitive) {
+            input.readPrimitiveField(pbInfo, object);
+        } else if (pbInfo.mLazy) {
+            PBLazy lazy = (PBLazy) pbInfo.mAccessor.get(object);
+            if (lazy == null) {
+                lazy = new PBLazy();
+                pbInfo.mAccessor.set(object, lazy);
+            }
+            if (mask == null) {
+                lazy.setSlice(input.readSlice(pbInfo.mType, pbInfo.mClassType, -1, lazyParsing));
+            } else {
+                // 有投影时直接按投影解析
+                lazy.set(readNested(pbInfo, pbInfo.mClassType, input, mask, lazyParsing, recycler));
+            }
+        } else if (pbInfo.mLabel == PBWireFormat.FieldLabel.REPEATED) {
+            List list = (List) pbInfo.mAccessor.get(object);
+            if (lazyParsing && mask == null && pbInfo.mType.getWireType() == PBWireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                LazyList lazyList;
+                if (list instanceof LazyList) {
+                    lazyList = (LazyList) list;
+                } else {
+                    lazyList = new LazyList(list);
+                    pbInfo.mAccessor.set(object, lazyList);
+                }
+                Class<?> cls = pbInfo.mClassType;
+                int polymTag = -1;
+                if (pbInfo.isPolymMessage()) {
+                    polymTag = input.readInt32();
+                    cls = pbInfo.getPolymClass(polymTag);
+                }
+                lazyList.addSlice(input.readSlice(pbInfo.mType, cls, polymTag, true));
+            } else if (pbInfo.mType == PBWireFormat.FieldType.MESSAGE) {
+                // 只有message并且在List里面才需要多态的支持
+                Class<?> cls = pbInfo.mClassType;
+                if (pbInfo.isPolymMessage()) {
+                    cls = pbInfo.getPolymClass(input.readInt32());
+                }
+                list.add(readNested(pbInfo, cls, input, mask, lazyParsing, recycler));
+            } else {
+                list.add(input.readField(pbInfo.mType));
+            }
+        } else if (pbInfo.mType == PBWireFormat.FieldType.MESSAGE) {
+            pbInfo.mAccessor.set(object, readNested(pbInfo, pbInfo.mClassType, input, mask, lazyParsing, recycler));
+        } else if (pbInfo.mClassType == byte[].class) {
+            pbInfo.mAccessor.set(object, input.readByteArray());
+        } else {
+            pbInfo.mAccessor.set(object, input.readField(pbInfo.mType));
+        }
+    }
+}
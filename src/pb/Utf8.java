@@ -0,0 +1,190 @@
+package pb;
+
+/**
+ * UTF-8 编解码, 给 {@link PBCodedOutputStream} 和 {@link PBCodedInputStream} 直接在各自的 buffer 上用,
+ * 不经过 {@code String.getBytes("UTF-8")} / {@code new String(bytes, "UTF-8")}, 也不查 charset.
+ * <p/>
+ * 不成对的 surrogate 编码成 '?'. 解码时非法或不完整的字节序列换成 U+FFFD, 规则和 JDK 8 以后的 UTF-8 解码器相同:
+ * 一段合法序列的前缀 (或者单个非法字节) 换成一个, 从出错的字节重新开始; 编码成 3 字节的 surrogate 整个换成一个.
+ */
+final class Utf8 {
+    private static final char REPLACEMENT_CHAR = '\uFFFD';
+
+    // Do not allow instantiation.
+    private Utf8() {
+    }
+
+    /**
+     * 返回 {@code value} 编码后的字节数, 不分配内存.
+     */
+    static int encodedLength(final String value) {
+        final int length = value.length();
+        int i = 0;
+        // ASCII
+        while (i < length && value.charAt(i) < 0x80) {
+            i++;
+        }
+        int size = i;
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (isSurrogate(c)) {
+                // 不成对的 surrogate 写成 '?'
+                size += 1;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 把 {@code value} 编码到 {@code buffer} 的 {@code offset} 处, 调用者保证空间够
+     * ({@link #encodedLength(String)} 个字节). 返回写完之后的位置.
+     */
+    static int encode(final String value, final byte[] buffer, int offset) {
+        final int length = value.length();
+        int i = 0;
+        // ASCII 快速路径
+        for (char c; i < length && (c = value.charAt(i)) < 0x80; i++) {
+            buffer[offset++] = (byte) c;
+        }
+        for (; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[offset++] = (byte) (0xC0 | (c >>> 6));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[offset++] = (byte) (0xF0 | (codePoint >>> 18));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >>> 12) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | ((codePoint >>> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (isSurrogate(c)) {
+                buffer[offset++] = (byte) '?';
+            } else {
+                buffer[offset++] = (byte) (0xE0 | (c >>> 12));
+                buffer[offset++] = (byte) (0x80 | ((c >>> 6) & 0x3F));
+                buffer[offset++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * 把 {@code bytes[offset, offset + size)} 解码到 {@code chars}, 返回字符数.
+     * {@code chars} 至少要有 {@code size} 个位置.
+     */
+    static int decode(final byte[] bytes, int offset, final int size, final char[] chars) {
+        final int limit = offset + size;
+        int count = 0;
+        // ASCII 快速路径
+        while (offset < limit && bytes[offset] >= 0) {
+            chars[count++] = (char) bytes[offset++];
+        }
+        while (offset < limit) {
+            final int b1 = bytes[offset++];
+            if (b1 >= 0) {
+                chars[count++] = (char) b1;
+            } else if ((b1 >> 5) == -2 && (b1 & 0x1E) != 0) {
+                // 2 字节, C2..DF
+                if (offset < limit && isContinuation(bytes[offset])) {
+                    chars[count++] = (char) (((b1 & 0x1F) << 6) | (bytes[offset++] & 0x3F));
+                } else {
+                    chars[count++] = REPLACEMENT_CHAR;
+                }
+            } else if ((b1 >> 4) == -2) {
+                // 3 字节, E0..EF
+                if (offset + 1 < limit) {
+                    final byte b2 = bytes[offset];
+                    final byte b3 = bytes[offset + 1];
+                    if (isMalformed3(b1, b2)) {
+                        chars[count++] = REPLACEMENT_CHAR;
+                    } else if (!isContinuation(b3)) {
+                        chars[count++] = REPLACEMENT_CHAR;
+                        offset++;
+                    } else {
+                        final char c = (char) (((b1 & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                        // 编码成 3 字节的 surrogate 整个换成一个
+                        chars[count++] = isSurrogate(c) ? REPLACEMENT_CHAR : c;
+                        offset += 2;
+                    }
+                } else {
+                    // 结尾不完整, 合法的前缀换成一个
+                    chars[count++] = REPLACEMENT_CHAR;
+                    if (offset < limit && !isMalformed3(b1, bytes[offset])) {
+                        offset++;
+                    }
+                }
+            } else if ((b1 >> 3) == -2) {
+                // 4 字节, F0..F7
+                final int lead = b1 & 0xFF;
+                if (offset + 2 < limit) {
+                    final byte b2 = bytes[offset];
+                    final byte b3 = bytes[offset + 1];
+                    final byte b4 = bytes[offset + 2];
+                    if (isMalformed4(lead, b2)) {
+                        chars[count++] = REPLACEMENT_CHAR;
+                    } else if (!isContinuation(b3)) {
+                        chars[count++] = REPLACEMENT_CHAR;
+                        offset++;
+                    } else if (!isContinuation(b4)) {
+                        chars[count++] = REPLACEMENT_CHAR;
+                        offset += 2;
+                    } else {
+                        final int codePoint = ((lead & 0x07) << 18) | ((b2 & 0x3F) << 12)
+                                | ((b3 & 0x3F) << 6) | (b4 & 0x3F);
+                        count += Character.toChars(codePoint, chars, count);
+                        offset += 3;
+                    }
+                } else {
+                    chars[count++] = REPLACEMENT_CHAR;
+                    if (offset < limit && !isMalformed4(lead, bytes[offset])) {
+                        offset++;
+                        if (offset < limit && isContinuation(bytes[offset])) {
+                            offset++;
+                        }
+                    }
+                }
+            } else {
+                // 单独的后续字节, C0, C1 (overlong), F8 以上
+                chars[count++] = REPLACEMENT_CHAR;
+            }
+        }
+        return count;
+    }
+
+    // Character.isSurrogate 在低版本 Android 上没有
+    private static boolean isSurrogate(final char c) {
+        return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+    }
+
+    private static boolean isContinuation(final byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * 3 字节序列的第二个字节不对, 只换掉第一个字节. E0 后面的 80..9F 是 overlong.
+     */
+    private static boolean isMalformed3(final int b1, final byte b2) {
+        return (b1 == (byte) 0xE0 && (b2 & 0xE0) == 0x80) || !isContinuation(b2);
+    }
+
+    /**
+     * 4 字节序列的第二个字节不对, 只换掉第一个字节. F0 后面的 80..8F 是 overlong, F4 90 以上和 F5 以上超过 U+10FFFF.
+     */
+    private static boolean isMalformed4(final int lead, final byte b2) {
+        final int b = b2 & 0xFF;
+        return lead > 0xF4 || (lead == 0xF0 && b < 0x90) || (lead == 0xF4 && b > 0x8F) || !isContinuation(b2);
+    }
+}
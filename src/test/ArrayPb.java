@@ -0,0 +1,24 @@
+package test;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+
+@ClassDef
+public class ArrayPb {
+    @FieldDef(tag = 1, type = PBWireFormat.FieldType.INT32, packed = true)
+    public int[] mInts;
+
+    @FieldDef(tag = 2, type = PBWireFormat.FieldType.SINT64)
+    public long[] mLongs;
+
+    @FieldDef(tag = 3, type = PBWireFormat.FieldType.DOUBLE, packed = true)
+    public double[] mDoubles;
+
+    @FieldDef(tag = 4, type = PBWireFormat.FieldType.BOOL, packed = true)
+    public boolean[] mBools;
+
+    @FieldDef(tag = 5)
+    public byte[] mData;
+}
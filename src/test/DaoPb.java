@@ -0,0 +1,42 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+
+@ClassDef
+public class DaoPb {
+    @FieldDef(tag = 1)
+    public int mInt;
+
+    @FieldDef(tag = 2)
+    public long mLong;
+
+    @FieldDef(tag = 3)
+    public double mDouble;
+
+    @FieldDef(tag = 4)
+    public float mFloat;
+
+    @FieldDef(tag = 5)
+    public boolean mBool;
+
+    @FieldDef(tag = 6)
+    public String mName;
+
+    @FieldDef(tag = 7)
+    public byte[] mData;
+
+    @FieldDef(tag = 8, type = PBWireFormat.FieldType.SINT32)
+    public Integer mOptional;
+
+    @FieldDef(tag = 9)
+    public SelfComposePb mChild;
+
+    @FieldDef(tag = 10)
+    public List<String> mTags = new ArrayList<String>();
+}
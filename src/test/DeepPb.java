@@ -0,0 +1,26 @@
+package test;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+
+/**
+ * 构造函数不公开, processor 不为它生成codec, 用手写的 {@link DeepPb_PBCodec}, 按生成的codec的方式读写.
+ */
+@ClassDef
+public class DeepPb {
+    @FieldDef(tag = 1)
+    public int mInt;
+
+    @FieldDef(tag = 2)
+    public DeepPb mChild;
+
+    private DeepPb() {
+    }
+
+    public static DeepPb create(int value) {
+        DeepPb pb = new DeepPb();
+        pb.mInt = value;
+        return pb;
+    }
+}
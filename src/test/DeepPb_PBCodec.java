@@ -0,0 +1,77 @@
+package test;
+
+import java.io.IOException;
+
+import pb.FieldBuilder;
+import pb.InvalidProtocolBufferException;
+import pb.MessageSizes;
+import pb.PBCodec;
+import pb.PBCodedInputStream;
+import pb.PBCodedOutputStream;
+
+
+/**
+ * 和 processor 生成的codec一样只用公开的接口, 另外记下 {@link #size} 被调用的次数.
+ */
+public final class DeepPb_PBCodec implements PBCodec<DeepPb> {
+    public static volatile int m_sizeCalls;
+
+    private PBCodec<DeepPb> mChildCodec;
+
+    private PBCodec<DeepPb> childCodec() throws InvalidProtocolBufferException {
+        if (mChildCodec == null) {
+            mChildCodec = FieldBuilder.getCodec(DeepPb.class);
+        }
+        return mChildCodec;
+    }
+
+    @Override
+    public int size(DeepPb object) throws InvalidProtocolBufferException {
+        return size(object, null);
+    }
+
+    @Override
+    public int size(DeepPb object, MessageSizes sizes) throws InvalidProtocolBufferException {
+        m_sizeCalls++;
+        int size = PBCodedOutputStream.computeInt32Size(1, object.mInt);
+        if (object.mChild != null) {
+            size += PBCodedOutputStream.computeMessageSize(2, childCodec(), object.mChild, sizes);
+        }
+        return size;
+    }
+
+    @Override
+    public void encode(DeepPb object, PBCodedOutputStream output) throws IOException {
+        output.writeInt32(1, object.mInt);
+        if (object.mChild != null) {
+            output.writeMessage(2, childCodec(), object.mChild);
+        }
+    }
+
+    @Override
+    public void merge(DeepPb object, PBCodedInputStream input) throws IOException {
+        while (true) {
+            int tag = input.readTag();
+            switch (tag) {
+                case 0:
+                    return;
+                case 8:
+                    object.mInt = input.readInt32();
+                    break;
+                case 18:
+                    object.mChild = input.readMessage(childCodec());
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public DeepPb decode(PBCodedInputStream input) throws IOException {
+        DeepPb object = DeepPb.create(0);
+        merge(object, input);
+        return object;
+    }
+}
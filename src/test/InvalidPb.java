@@ -0,0 +1,91 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+import pb.PolymDef;
+
+
+/**
+ * 标注写错的类, 建 schema 时应该抛异常.
+ */
+public class InvalidPb {
+    @ClassDef
+    public static class Packed {
+        @FieldDef(tag = 1, type = PBWireFormat.FieldType.INT32)
+        public int mInt;
+
+        @FieldDef(tag = 2, type = PBWireFormat.FieldType.STRING, packed = true)
+        public List<String> mNames = new ArrayList<String>();
+    }
+
+    @ClassDef
+    public static class PackedSingle {
+        @FieldDef(tag = 1, type = PBWireFormat.FieldType.INT32, packed = true)
+        public int mInt;
+    }
+
+    @ClassDef
+    public static class MapKey {
+        @FieldDef(tag = 1)
+        public Map<Double, String> mNames;
+    }
+
+    @ClassDef
+    public static class MapPacked {
+        @FieldDef(tag = 1, packed = true)
+        public Map<Integer, Integer> mCounts;
+    }
+
+    @ClassDef
+    public static class MapClass {
+        @FieldDef(tag = 1, mapClass = SizedMap.class)
+        public Map<Integer, String> mNames;
+    }
+
+    @ClassDef
+    public static class PolymCount {
+        @FieldDef(tag = 1)
+        @PolymDef(classes = {ShapePb.class, CirclePb.class}, tags = {1})
+        public List<ShapePb> mShapes = new ArrayList<ShapePb>();
+    }
+
+    @ClassDef
+    public static class DuplicateTag {
+        @FieldDef(tag = 1)
+        public int mFirst;
+
+        @FieldDef(tag = 1)
+        public int mSecond;
+    }
+
+    @ClassDef
+    public static class ZeroTag {
+        @FieldDef(tag = 0)
+        public int mInt;
+    }
+
+    @ClassDef
+    public static class NoConstructor {
+        @FieldDef(tag = 1)
+        public int mInt;
+
+        public NoConstructor(int value) {
+            mInt = value;
+        }
+    }
+
+    // 没有无参构造函数, 不能当 mapClass
+    public static class SizedMap<K, V> extends HashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        public SizedMap(int capacity) {
+            super(capacity);
+        }
+    }
+}
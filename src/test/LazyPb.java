@@ -0,0 +1,24 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBLazy;
+
+
+@ClassDef
+public class LazyPb {
+    @FieldDef(tag = 1)
+    public int mInt;
+
+    @FieldDef(tag = 2)
+    public PBLazy<SelfComposePb> mSelf;
+
+    @FieldDef(tag = 3)
+    public List<SelfComposePb> mList = new ArrayList<SelfComposePb>();
+
+    @FieldDef(tag = 4)
+    public List<String> mNames = new ArrayList<String>();
+}
@@ -0,0 +1,21 @@
+package test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+
+@ClassDef
+public class MapPb {
+    @FieldDef(tag = 1)
+    public Map<Integer, String> mNames;
+
+    @FieldDef(tag = 2)
+    public Map<String, SelfComposePb> mChildren;
+
+    @FieldDef(tag = 3, type = PBWireFormat.FieldType.SINT64, mapClass = TreeMap.class)
+    public Map<String, Long> mCounts;
+}
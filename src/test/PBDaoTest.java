@@ -0,0 +1,120 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import pb.DaoType;
+import pb.PBDao;
+import pb.PBMessage;
+
+/**
+ * 要在设备上跑, 用内存里的 SQLite 数据库.
+ */
+public class PBDaoTest extends TestCase {
+	private SQLiteDatabase mDatabase;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mDatabase = SQLiteDatabase.create(null);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDatabase.close();
+		super.tearDown();
+	}
+
+	private static DaoPb create(int i) {
+		DaoPb pb = new DaoPb();
+		pb.mInt = i;
+		pb.mLong = (long) i << 40;
+		pb.mDouble = i + 0.5;
+		pb.mFloat = i - 0.25f;
+		pb.mBool = i % 2 == 0;
+		pb.mName = "name中" + i;
+		pb.mData = new byte[]{(byte) i, 0, (byte) 0xff};
+		pb.mOptional = i % 3 == 0 ? null : -i;
+		if (i % 2 == 1) {
+			pb.mChild = new SelfComposePb();
+			pb.mChild.mInt = i * 10;
+			pb.mChild.mSelf = new SelfComposePb();
+		}
+		for (int j = 0; j < i % 4; j++) {
+			pb.mTags.add("tag" + j);
+		}
+		return pb;
+	}
+
+	private static void assertSame(DaoPb expected, DaoPb actual) throws Exception {
+		Assert.assertTrue(Arrays.equals(new PBMessage<DaoPb>(expected).toByteArray(),
+				new PBMessage<DaoPb>(actual).toByteArray()));
+	}
+
+	private void roundTrip(DaoType daoType) throws Exception {
+		PBDao<DaoPb> dao = PBDao.open(mDatabase, DaoPb.class, daoType);
+		List<Long> ids = new ArrayList<Long>();
+		for (int i = 0; i < 5; i++) {
+			ids.add(dao.insert(create(i)));
+		}
+		Assert.assertEquals(5, dao.count());
+		for (int i = 0; i < 5; i++) {
+			assertSame(create(i), dao.get(ids.get(i)));
+		}
+		Assert.assertNull(dao.get(-1));
+
+		List<DaoPb> all = dao.getAll();
+		Assert.assertEquals(5, all.size());
+		for (int i = 0; i < 5; i++) {
+			assertSame(create(i), all.get(i));
+		}
+
+		Assert.assertTrue(dao.delete(ids.get(2)));
+		Assert.assertFalse(dao.delete(ids.get(2)));
+		Assert.assertNull(dao.get(ids.get(2)));
+		Assert.assertEquals(4, dao.count());
+
+		List<DaoPb> batch = new ArrayList<DaoPb>();
+		for (int i = 5; i < 105; i++) {
+			batch.add(create(i));
+		}
+		dao.insertAll(batch);
+		Assert.assertEquals(104, dao.count());
+		all = dao.getAll();
+		assertSame(create(104), all.get(all.size() - 1));
+
+		dao.clear();
+		Assert.assertEquals(0, dao.count());
+		dao.close();
+	}
+
+	public void testBlobDao() throws Exception {
+		roundTrip(DaoType.ProtocolBuffer);
+	}
+
+	public void testColumnDao() throws Exception {
+		roundTrip(DaoType.SQLLite);
+
+		// 基本类型的字段直接存成列, 可以在 SQL 里查
+		PBDao<DaoPb> dao = PBDao.open(mDatabase, DaoPb.class, DaoType.SQLLite, "daos");
+		dao.insert(create(7));
+		dao.insert(create(9));
+		Cursor cursor = mDatabase.rawQuery("SELECT \"mName\", \"mLong\", \"mOptional\" FROM \"daos\" ORDER BY _id", null);
+		try {
+			Assert.assertTrue(cursor.moveToNext());
+			Assert.assertEquals("name中7", cursor.getString(0));
+			Assert.assertEquals(7L << 40, cursor.getLong(1));
+			Assert.assertEquals(-7, cursor.getInt(2));
+			Assert.assertTrue(cursor.moveToNext());
+			Assert.assertTrue(cursor.isNull(2));
+		} finally {
+			cursor.close();
+		}
+		dao.close();
+	}
+}
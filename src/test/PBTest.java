@@ -1,7 +1,37 @@
 package test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import pb.FieldBuilder;
+import pb.InvalidProtocolBufferException;
+import pb.LazyParseException;
+import pb.PBAccessor;
+import pb.PBBufferPool;
+import pb.PBCodec;
 import pb.PBCodedInputStream;
+import pb.PBCodedOutputStream;
+import pb.PBDelimitedReader;
+import pb.PBDelimitedWriter;
+import pb.PBFieldMask;
+import pb.PBLazy;
 import pb.PBMessage;
+import pb.PBMessageLog;
+import pb.PBMetrics;
+import pb.PBMetricsRegistry;
+import pb.PBObjectPool;
+import pb.PBWireFormat;
 import junit.framework.Assert;
 import junit.framework.TestCase;
 
@@ -24,4 +54,830 @@ public class PBTest extends TestCase {
 		Assert.assertEquals(1, pb3.mInt);
 		Assert.assertEquals(2, pb3.mSelf.mInt);
 	}
+
+	public void testAccessorStrategy() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 1;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = -2;
+
+		PBAccessor.Strategy old = FieldBuilder.getAccessorStrategy();
+		try {
+			FieldBuilder.setAccessorStrategy(PBAccessor.Strategy.REFLECTION);
+			byte[] reflection = new PBMessage<SelfComposePb>(pb).toByteString().toByteArray();
+			FieldBuilder.setAccessorStrategy(PBAccessor.Strategy.TYPED);
+			byte[] typed = new PBMessage<SelfComposePb>(pb).toByteString().toByteArray();
+			Assert.assertTrue(Arrays.equals(reflection, typed));
+
+			PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+			msg.parse(PBCodedInputStream.newInstance(typed));
+			Assert.assertEquals(1, msg.getObject().mInt);
+			Assert.assertEquals(-2, msg.getObject().mSelf.mInt);
+		} finally {
+			FieldBuilder.setAccessorStrategy(old);
+		}
+	}
+
+	public void testSchemaCache() throws Exception {
+		try {
+			FieldBuilder.setCacheCapacity(1);
+			long evictions = FieldBuilder.getCacheEvictionCount();
+			FieldBuilder.Build(SelfComposePb.class);
+			long hits = FieldBuilder.getCacheHitCount();
+			FieldBuilder.Build(SelfComposePb.class);
+			Assert.assertEquals(hits + 1, FieldBuilder.getCacheHitCount());
+
+			FieldBuilder.Build(PBTest.class);
+			Assert.assertEquals(1, FieldBuilder.getCacheSize());
+			Assert.assertEquals(evictions + 1, FieldBuilder.getCacheEvictionCount());
+		} finally {
+			FieldBuilder.setCacheCapacity(FieldBuilder.DEFAULT_CACHE_CAPACITY);
+		}
+	}
+
+	public void testWriteTo() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 300;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 4;
+
+		PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(pb);
+		byte[] bytes = msg.toByteArray();
+		Assert.assertTrue(Arrays.equals(bytes, msg.toByteString().toByteArray()));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		msg.writeTo(stream);
+		Assert.assertTrue(Arrays.equals(bytes, stream.toByteArray()));
+
+		ByteBuffer heap = ByteBuffer.allocate(bytes.length + 2);
+		heap.put((byte) 0);
+		msg.writeTo(heap);
+		Assert.assertEquals(bytes.length + 1, heap.position());
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		msg.writeTo(direct);
+		Assert.assertEquals(0, direct.remaining());
+		direct.flip();
+		byte[] copy = new byte[bytes.length];
+		direct.get(copy);
+		Assert.assertTrue(Arrays.equals(bytes, copy));
+	}
+
+	public void testByteBufferInput() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 300;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 4;
+		byte[] bytes = new PBMessage<SelfComposePb>(pb).toByteArray();
+
+		ByteBuffer heap = ByteBuffer.allocate(bytes.length + 1);
+		heap.put((byte) 0).put(bytes).position(1);
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		direct.put(bytes).flip();
+		for (ByteBuffer buf : new ByteBuffer[] {heap, direct}) {
+			PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+			msg.parse(PBCodedInputStream.newInstance(buf));
+			Assert.assertEquals(300, msg.getObject().mInt);
+			Assert.assertEquals(4, msg.getObject().mSelf.mInt);
+			Assert.assertEquals(buf == heap ? 1 : 0, buf.position());
+		}
+	}
+
+	public void testByteBufferOutput() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 300;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 4;
+		PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(pb);
+		byte[] bytes = msg.toByteArray();
+
+		ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(direct);
+		msg.serialize(output);
+		output.flush();
+		Assert.assertEquals(0, output.spaceLeft());
+		Assert.assertEquals(bytes.length, direct.position());
+
+		PBBufferPool pool = new PBBufferPool();
+		output = PBCodedOutputStream.newInstance(pool, 1);
+		for (int i = 0; i < 1000; i++) {
+			msg.serialize(output);
+		}
+		output.flush();
+		ByteBuffer grown = output.getByteBuffer();
+		Assert.assertEquals(bytes.length * 1000, grown.position());
+		grown.flip();
+		byte[] copy = new byte[bytes.length];
+		grown.position(bytes.length * 999);
+		grown.get(copy);
+		Assert.assertTrue(Arrays.equals(bytes, copy));
+		pool.release(grown);
+	}
+
+	public void testUtf8() throws Exception {
+		StringBuilder longString = new StringBuilder();
+		for (int i = 0; i < 3000; i++) {
+			longString.append("a\u00e9\u4e2d\ud83d\ude00");
+		}
+		String[] strings = {
+				"", "hello", "\u00e9\u00df\u07ff", "\u0800\u4e2d\u6587\uffff", "\ud800\udc00\ud83d\ude00\udbff\udfff",
+				// 不成对的 surrogate
+				"a\ud800b", "\udc00", "x\ud83d", "\ude00\ud83d", longString.toString()
+		};
+		for (String value : strings) {
+			byte[] expected = value.getBytes("UTF-8");
+			Assert.assertEquals(expected.length + PBCodedOutputStream.computeRawVarint32Size(expected.length),
+					PBCodedOutputStream.computeStringSizeNoTag(value));
+			// 小 buffer 时字符串跨过 buffer 边界
+			for (int bufferSize : new int[]{7, 4096}) {
+				ByteArrayOutputStream stream = new ByteArrayOutputStream();
+				PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream, bufferSize);
+				output.writeRawByte(1);
+				output.writeStringNoTag(value);
+				output.flush();
+				Assert.assertTrue(Arrays.equals(delimited(expected), stream.toByteArray()));
+			}
+			Assert.assertEquals(new String(expected, "UTF-8"), readString(expected));
+		}
+
+		byte[][] malformed = {
+				// 不完整
+				{(byte) 0xc3}, {(byte) 0xe4, (byte) 0xb8}, {(byte) 0xe4, (byte) 0xb8, 'a'}, {(byte) 0xf0, (byte) 0x9f, (byte) 0x98},
+				{(byte) 0xf0, (byte) 0x9f, 'a', (byte) 0x98},
+				// overlong
+				{(byte) 0xc0, (byte) 0xaf}, {(byte) 0xc1, (byte) 0xbf}, {(byte) 0xe0, (byte) 0x80, (byte) 0xaf},
+				{(byte) 0xf0, (byte) 0x80, (byte) 0x80, (byte) 0xaf},
+				// surrogate, 超过 U+10FFFF, 多余的后续字节
+				{(byte) 0xed, (byte) 0xa0, (byte) 0x80}, {(byte) 0xf4, (byte) 0x90, (byte) 0x80, (byte) 0x80},
+				{(byte) 0xf8, (byte) 0x88, (byte) 0x80, (byte) 0x80, (byte) 0x80}, {(byte) 0x80}, {'a', (byte) 0xbf, 'b'},
+		};
+		for (byte[] bytes : malformed) {
+			Assert.assertEquals(new String(bytes, "UTF-8"), readString(bytes));
+		}
+		// 随机字节, 偏向多字节序列的边界值
+		int[] interesting = {0x00, 0x41, 0x7f, 0x80, 0x8f, 0x90, 0x9f, 0xa0, 0xbf, 0xc0, 0xc1, 0xc2, 0xdf, 0xe0, 0xe1,
+				0xec, 0xed, 0xee, 0xef, 0xf0, 0xf1, 0xf3, 0xf4, 0xf5, 0xf8, 0xff};
+		Random random = new Random(42);
+		for (int i = 0; i < 5000; i++) {
+			byte[] bytes = new byte[random.nextInt(12)];
+			for (int j = 0; j < bytes.length; j++) {
+				bytes[j] = (byte) interesting[random.nextInt(interesting.length)];
+			}
+			Assert.assertEquals(new String(bytes, "UTF-8"), readString(bytes));
+		}
+	}
+
+	private static byte[] delimited(byte[] bytes) throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeRawByte(1);
+		output.writeRawVarint32(bytes.length);
+		output.writeRawBytes(bytes);
+		output.flush();
+		return stream.toByteArray();
+	}
+
+	/**
+	 * 从 byte 数组和每次只给 3 个字节的流各读一遍, 结果要一样.
+	 */
+	private static String readString(byte[] bytes) throws Exception {
+		byte[] data = delimited(bytes);
+		PBCodedInputStream input = PBCodedInputStream.newInstance(data);
+		Assert.assertEquals(1, input.readRawByte());
+		String value = input.readString();
+		input = PBCodedInputStream.newInstance(new FilterInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 3));
+			}
+		});
+		Assert.assertEquals(1, input.readRawByte());
+		Assert.assertEquals(value, input.readString());
+		return value;
+	}
+
+	public void testLazyParsing() throws Exception {
+		LazyPb pb = new LazyPb();
+		pb.mInt = 7;
+		SelfComposePb self = new SelfComposePb();
+		self.mInt = 300;
+		pb.mSelf = new PBLazy<SelfComposePb>(self);
+		for (int i = 0; i < 3; i++) {
+			SelfComposePb item = new SelfComposePb();
+			item.mInt = i;
+			pb.mList.add(item);
+			pb.mNames.add("name" + i);
+		}
+		byte[] bytes = new PBMessage<LazyPb>(pb).toByteArray();
+
+		PBMessage<LazyPb> msg = new PBMessage<LazyPb>(LazyPb.class);
+		msg.setLazyParsing(true);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		LazyPb lazy = msg.getObject();
+		Assert.assertEquals(7, lazy.mInt);
+		Assert.assertTrue(lazy.mSelf.isLazy());
+		// 没访问过的按原始字节写回
+		Assert.assertTrue(Arrays.equals(bytes, msg.toByteArray()));
+
+		Assert.assertEquals(3, lazy.mList.size());
+		Assert.assertEquals(1, lazy.mList.get(1).mInt);
+		Assert.assertEquals("name2", lazy.mNames.get(2));
+		Assert.assertEquals(300, lazy.mSelf.get().mInt);
+		Assert.assertFalse(lazy.mSelf.isLazy());
+		Assert.assertTrue(Arrays.equals(bytes, msg.toByteArray()));
+	}
+
+	public void testCorruptLazyField() throws Exception {
+		// mSelf 和 mList 的第一个元素长度正确, 内容里的 varint 不完整
+		byte[] bytes = {0x08, 0x01, 0x12, 0x02, 0x08, (byte) 0x80, 0x1a, 0x02, 0x08, (byte) 0x80};
+		PBMessage<LazyPb> msg = new PBMessage<LazyPb>(LazyPb.class);
+		msg.setLazyParsing(true);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		LazyPb lazy = msg.getObject();
+		Assert.assertEquals(1, lazy.mInt);
+		try {
+			lazy.mSelf.get();
+			Assert.fail();
+		} catch (LazyParseException e) {
+			Assert.assertTrue(e.getCause() instanceof InvalidProtocolBufferException);
+		}
+		// 出错的字段仍然是原始数据, 可以原样写回
+		Assert.assertTrue(lazy.mSelf.isLazy());
+		Assert.assertTrue(Arrays.equals(bytes, msg.toByteArray()));
+		try {
+			lazy.mList.get(0);
+			Assert.fail();
+		} catch (LazyParseException e) {
+			Assert.assertTrue(e.getCause() instanceof InvalidProtocolBufferException);
+		}
+	}
+
+	public void testFieldMask() throws Exception {
+		LazyPb pb = new LazyPb();
+		pb.mInt = 7;
+		pb.mSelf = new PBLazy<SelfComposePb>(new SelfComposePb());
+		for (int i = 0; i < 3; i++) {
+			SelfComposePb item = new SelfComposePb();
+			item.mInt = i;
+			item.mSelf = new SelfComposePb();
+			pb.mList.add(item);
+			pb.mNames.add("name" + i);
+		}
+		byte[] bytes = new PBMessage<LazyPb>(pb).toByteArray();
+
+		PBMessage<LazyPb> msg = new PBMessage<LazyPb>(LazyPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes), PBFieldMask.of("1", "mList.1"));
+		LazyPb parsed = msg.getObject();
+		Assert.assertEquals(7, parsed.mInt);
+		Assert.assertNull(parsed.mSelf);
+		Assert.assertTrue(parsed.mNames.isEmpty());
+		Assert.assertEquals(3, parsed.mList.size());
+		Assert.assertEquals(2, parsed.mList.get(2).mInt);
+		Assert.assertNull(parsed.mList.get(2).mSelf);
+	}
+
+	public void testPacked() throws Exception {
+		PackedPb pb = new PackedPb();
+		for (int i = 0; i < 100; i++) {
+			pb.mInts.add(i);
+			pb.mLongs.add((long) -(i % 64));
+			pb.mDoubles.add(i / 2.0);
+			pb.mUnpacked.add(i);
+		}
+		byte[] bytes = new PBMessage<PackedPb>(pb).toByteArray();
+		// 100 个 1 字节的 varint: packed 是 tag + 长度 + 100, 不packed是 200
+		Assert.assertEquals((1 + 1 + 100) * 2 + (1 + 2 + 800) + 200, bytes.length);
+
+		PBMessage<PackedPb> msg = new PBMessage<PackedPb>(PackedPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		Assert.assertEquals(pb.mInts, msg.getObject().mInts);
+		Assert.assertEquals(pb.mLongs, msg.getObject().mLongs);
+		Assert.assertEquals(pb.mDoubles, msg.getObject().mDoubles);
+		Assert.assertEquals(pb.mUnpacked, msg.getObject().mUnpacked);
+
+		// 两种编码都接受
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeInt32(1, 5);
+		output.writeInt32(1, 6);
+		output.writeTag(4, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+		output.writeRawVarint32(2);
+		output.writeRawVarint32(7);
+		output.writeRawVarint32(8);
+		output.flush();
+		msg = new PBMessage<PackedPb>(PackedPb.class);
+		msg.parse(PBCodedInputStream.newInstance(stream.toByteArray()));
+		Assert.assertEquals(Arrays.asList(5, 6), msg.getObject().mInts);
+		Assert.assertEquals(Arrays.asList(7, 8), msg.getObject().mUnpacked);
+	}
+
+	public void testInvalidPacked() throws Exception {
+		assertInvalid(InvalidPb.Packed.class, "Packed.mNames");
+		assertInvalid(InvalidPb.PackedSingle.class, "PackedSingle.mInt");
+	}
+
+	public void testInvalidSchema() throws Exception {
+		assertInvalid(InvalidPb.PolymCount.class, "PolymCount.mShapes");
+		try {
+			FieldBuilder.getCodec(InvalidPb.DuplicateTag.class);
+			Assert.fail();
+		} catch (InvalidProtocolBufferException e) {
+			// getDeclaredFields 不保证顺序, 报哪一个字段都可以
+			Assert.assertTrue(e.getFieldPath().startsWith("DuplicateTag.m"));
+		}
+		assertInvalid(InvalidPb.ZeroTag.class, "ZeroTag.mInt");
+		assertInvalid(InvalidPb.NoConstructor.class, "NoConstructor");
+	}
+
+	private static <T> void assertInvalid(Class<T> type, String fieldPath) throws Exception {
+		try {
+			new PBMessage<T>(type);
+			Assert.fail();
+		} catch (InvalidProtocolBufferException e) {
+			Assert.assertEquals(fieldPath, e.getFieldPath());
+		}
+		// 失败的类不进缓存, 每次都重新报错
+		try {
+			FieldBuilder.getCodec(type);
+			Assert.fail();
+		} catch (InvalidProtocolBufferException e) {
+			Assert.assertEquals(fieldPath, e.getFieldPath());
+		}
+	}
+
+	public void testPrimitiveArrays() throws Exception {
+		ArrayPb pb = new ArrayPb();
+		pb.mInts = new int[100];
+		pb.mLongs = new long[100];
+		pb.mDoubles = new double[100];
+		pb.mBools = new boolean[100];
+		for (int i = 0; i < 100; i++) {
+			pb.mInts[i] = i;
+			pb.mLongs[i] = -(i % 64);
+			pb.mDoubles[i] = i / 2.0;
+			pb.mBools[i] = i % 3 == 0;
+		}
+		pb.mData = new byte[] {1, 2, 3};
+		byte[] bytes = new PBMessage<ArrayPb>(pb).toByteArray();
+		// 和 List 字段的编码一样: packed 是 tag + 长度 + 数据, 不packed每个元素带 tag
+		Assert.assertEquals((1 + 1 + 100) + 200 + (1 + 2 + 800) + (1 + 1 + 100) + (1 + 1 + 3), bytes.length);
+
+		PBMessage<ArrayPb> msg = new PBMessage<ArrayPb>(ArrayPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		Assert.assertTrue(Arrays.equals(pb.mInts, msg.getObject().mInts));
+		Assert.assertTrue(Arrays.equals(pb.mLongs, msg.getObject().mLongs));
+		Assert.assertTrue(Arrays.equals(pb.mDoubles, msg.getObject().mDoubles));
+		Assert.assertTrue(Arrays.equals(pb.mBools, msg.getObject().mBools));
+		Assert.assertTrue(Arrays.equals(pb.mData, msg.getObject().mData));
+
+		// 两种编码都接受, 分开出现的元素按顺序拼起来
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeInt32(1, 5);
+		output.writeTag(2, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+		output.writeRawVarint32(2);
+		output.writeSInt64NoTag(-1);
+		output.writeSInt64NoTag(2);
+		output.writeInt32(1, 6);
+		output.flush();
+		msg = new PBMessage<ArrayPb>(ArrayPb.class);
+		msg.parse(PBCodedInputStream.newInstance(stream.toByteArray()));
+		Assert.assertTrue(Arrays.equals(new int[] {5, 6}, msg.getObject().mInts));
+		Assert.assertTrue(Arrays.equals(new long[] {-1, 2}, msg.getObject().mLongs));
+		Assert.assertNull(msg.getObject().mDoubles);
+	}
+
+	public void testPrimitiveFields() throws Exception {
+		PrimitivePb pb = new PrimitivePb();
+		pb.mSInt32 = -3;
+		pb.mSInt64 = Long.MIN_VALUE;
+		pb.mFixed32 = 0x80000001;
+		pb.mFixed64 = -1L;
+		pb.mSFixed32 = -5;
+		pb.mSFixed64 = 1L << 40;
+		pb.mEnum = 2;
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeSInt32(1, -3);
+		output.writeSInt64(2, Long.MIN_VALUE);
+		output.writeFixed32(3, 0x80000001);
+		output.writeFixed64(4, -1L);
+		output.writeSFixed32(5, -5);
+		output.writeSFixed64(6, 1L << 40);
+		output.writeEnum(7, 2);
+		output.flush();
+		byte[] expected = stream.toByteArray();
+
+		PBAccessor.Strategy old = FieldBuilder.getAccessorStrategy();
+		try {
+			for (PBAccessor.Strategy strategy : PBAccessor.Strategy.values()) {
+				FieldBuilder.setAccessorStrategy(strategy);
+				byte[] bytes = new PBMessage<PrimitivePb>(pb).toByteArray();
+				Assert.assertTrue(Arrays.equals(expected, bytes));
+
+				PBMessage<PrimitivePb> msg = new PBMessage<PrimitivePb>(PrimitivePb.class);
+				msg.parse(PBCodedInputStream.newInstance(bytes));
+				PrimitivePb pb2 = msg.getObject();
+				Assert.assertEquals(-3, pb2.mSInt32);
+				Assert.assertEquals(Long.MIN_VALUE, pb2.mSInt64);
+				Assert.assertEquals(0x80000001, pb2.mFixed32);
+				Assert.assertEquals(-1L, pb2.mFixed64);
+				Assert.assertEquals(-5, pb2.mSFixed32);
+				Assert.assertEquals(1L << 40, pb2.mSFixed64);
+				Assert.assertEquals(2, pb2.mEnum);
+			}
+		} finally {
+			FieldBuilder.setAccessorStrategy(old);
+		}
+	}
+
+	public void testMap() throws Exception {
+		MapPb pb = new MapPb();
+		pb.mNames = new HashMap<Integer, String>();
+		pb.mNames.put(5, "ab");
+		// 同 protobuf 的 map entry: key 是 tag 1, value 是 tag 2
+		byte[] bytes = new PBMessage<MapPb>(pb).toByteArray();
+		Assert.assertTrue(Arrays.equals(new byte[] {0x0a, 6, 0x08, 5, 0x12, 2, 'a', 'b'}, bytes));
+
+		pb.mChildren = new HashMap<String, SelfComposePb>();
+		for (int i = 0; i < 10; i++) {
+			SelfComposePb child = new SelfComposePb();
+			child.mInt = i;
+			child.mSelf = new SelfComposePb();
+			child.mSelf.mInt = i * 100;
+			pb.mChildren.put("c" + i, child);
+		}
+		pb.mCounts = new HashMap<String, Long>();
+		pb.mCounts.put("x", -3L);
+		pb.mCounts.put("", 0L);
+		bytes = new PBMessage<MapPb>(pb).toByteArray();
+
+		PBMessage<MapPb> msg = new PBMessage<MapPb>(MapPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		MapPb pb2 = msg.getObject();
+		Assert.assertEquals(pb.mNames, pb2.mNames);
+		Assert.assertEquals(10, pb2.mChildren.size());
+		Assert.assertEquals(700, pb2.mChildren.get("c7").mSelf.mInt);
+		// 字段为 null 时按 mapClass 创建
+		Assert.assertTrue(pb2.mCounts instanceof TreeMap);
+		Assert.assertEquals(pb.mCounts, pb2.mCounts);
+		Assert.assertEquals(bytes.length, new PBMessage<MapPb>(pb2).size());
+
+		// 写错的 map 字段让整个类失败, 不悄悄丢掉
+		assertInvalid(InvalidPb.MapKey.class, "MapKey.mNames");
+		assertInvalid(InvalidPb.MapPacked.class, "MapPacked.mCounts");
+		assertInvalid(InvalidPb.MapClass.class, "MapClass.mNames");
+	}
+
+	public void testPolym() throws Exception {
+		CirclePb circle = new CirclePb();
+		circle.mId = 3;
+		circle.mRadius = 1.5;
+		PolymPb pb = new PolymPb();
+		pb.mShape = circle;
+		byte[] bytes = new PBMessage<PolymPb>(pb).toByteArray();
+
+		// 单个的message不写多态的tag, 按声明的类型解析
+		byte[] circleBytes = new PBMessage<CirclePb>(circle).toByteArray();
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeTag(1, PBWireFormat.WIRETYPE_LENGTH_DELIMITED);
+		output.writeRawVarint32(circleBytes.length);
+		output.writeRawBytes(circleBytes);
+		output.flush();
+		Assert.assertTrue(Arrays.equals(stream.toByteArray(), bytes));
+
+		PBMessage<PolymPb> msg = new PBMessage<PolymPb>(PolymPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		Assert.assertEquals(ShapePb.class, msg.getObject().mShape.getClass());
+		Assert.assertEquals(3, msg.getObject().mShape.mId);
+
+		// List 里按多态的tag还原子类
+		ShapePb shape = new ShapePb();
+		shape.mId = 1;
+		pb.mShapes.add(shape);
+		pb.mShapes.add(circle);
+		bytes = new PBMessage<PolymPb>(pb).toByteArray();
+		msg = new PBMessage<PolymPb>(PolymPb.class);
+		msg.parse(PBCodedInputStream.newInstance(bytes));
+		PolymPb pb2 = msg.getObject();
+		Assert.assertEquals(3, pb2.mShape.mId);
+		Assert.assertEquals(2, pb2.mShapes.size());
+		Assert.assertEquals(ShapePb.class, pb2.mShapes.get(0).getClass());
+		Assert.assertEquals(1, pb2.mShapes.get(0).mId);
+		Assert.assertEquals(1.5, ((CirclePb) pb2.mShapes.get(1)).mRadius);
+	}
+
+	public void testParseInto() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 1;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 2;
+		byte[] bytes = new PBMessage<SelfComposePb>(pb).toByteArray();
+		SelfComposePb other = new SelfComposePb();
+		other.mInt = 3;
+		byte[] otherBytes = new PBMessage<SelfComposePb>(other).toByteArray();
+
+		SelfComposePb target = new SelfComposePb();
+		PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(target);
+		msg.setRecycler(new PBObjectPool());
+		msg.parseInto(target, PBCodedInputStream.newInstance(bytes));
+		SelfComposePb nested = target.mSelf;
+		Assert.assertEquals(2, nested.mInt);
+
+		// 原来的字段都清掉
+		msg.parseInto(target, PBCodedInputStream.newInstance(otherBytes));
+		Assert.assertSame(target, msg.getObject());
+		Assert.assertEquals(3, target.mInt);
+		Assert.assertNull(target.mSelf);
+
+		// 嵌套的对象从池里取回来, 取出来时已经清空
+		nested.mSelf = new SelfComposePb();
+		msg.parseInto(target, PBCodedInputStream.newInstance(bytes));
+		Assert.assertSame(nested, target.mSelf);
+		Assert.assertEquals(2, target.mSelf.mInt);
+		Assert.assertNull(target.mSelf.mSelf);
+	}
+
+	public void testCodec() throws Exception {
+		PBCodec<SelfComposePb> codec = FieldBuilder.getCodec(SelfComposePb.class);
+		// 每个类只有一个
+		Assert.assertSame(codec, FieldBuilder.getCodec(SelfComposePb.class));
+
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 1;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 2;
+		pb.mSelf.mSelf = new SelfComposePb();
+		pb.mSelf.mSelf.mInt = 3;
+		byte[] expected = new PBMessage<SelfComposePb>(pb).toByteArray();
+		Assert.assertEquals(expected.length, codec.size(pb));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		codec.encode(pb, output);
+		output.flush();
+		Assert.assertTrue(Arrays.equals(expected, stream.toByteArray()));
+
+		SelfComposePb pb2 = codec.decode(PBCodedInputStream.newInstance(expected));
+		Assert.assertEquals(1, pb2.mInt);
+		Assert.assertEquals(3, pb2.mSelf.mSelf.mInt);
+	}
+
+	public void testDeepNesting() throws Exception {
+		// DeepPb 用手写的codec, 和生成的codec走同样的接口, 每一层的长度只算一次
+		DeepPb root = DeepPb.create(0);
+		DeepPb last = root;
+		for (int i = 1; i < 500; i++) {
+			last.mChild = DeepPb.create(i);
+			last = last.mChild;
+		}
+		DeepPb_PBCodec.m_sizeCalls = 0;
+		byte[] bytes = new PBMessage<DeepPb>(root).toByteArray();
+		Assert.assertEquals(500, DeepPb_PBCodec.m_sizeCalls);
+
+		DeepPb_PBCodec.m_sizeCalls = 0;
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBCodedOutputStream output = PBCodedOutputStream.newInstance(stream);
+		output.writeDelimited(FieldBuilder.getCodec(DeepPb.class), root);
+		output.flush();
+		Assert.assertEquals(500, DeepPb_PBCodec.m_sizeCalls);
+
+		PBCodedInputStream input = PBCodedInputStream.newInstance(bytes);
+		input.setRecursionLimit(500);
+		DeepPb parsed = FieldBuilder.getCodec(DeepPb.class).decode(input);
+		for (int i = 0; i < 500; i++) {
+			Assert.assertEquals(i, parsed.mInt);
+			parsed = parsed.mChild;
+		}
+		Assert.assertNull(parsed);
+
+		// SelfComposePb 有生成的codec时走生成的codec, 结果和反射一样
+		SelfComposePb pb = new SelfComposePb();
+		SelfComposePb tail = pb;
+		for (int i = 1; i < 500; i++) {
+			tail.mSelf = new SelfComposePb();
+			tail = tail.mSelf;
+			tail.mInt = i;
+		}
+		bytes = new PBMessage<SelfComposePb>(pb).toByteArray();
+		Assert.assertEquals(FieldBuilder.getCodec(SelfComposePb.class).size(pb), bytes.length);
+		input = PBCodedInputStream.newInstance(bytes);
+		input.setRecursionLimit(500);
+		SelfComposePb pb2 = FieldBuilder.getCodec(SelfComposePb.class).decode(input);
+		Assert.assertTrue(Arrays.equals(bytes, new PBMessage<SelfComposePb>(pb2).toByteArray()));
+	}
+
+	public void testDelimited() throws Exception {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		PBDelimitedWriter<SelfComposePb> writer = new PBDelimitedWriter<SelfComposePb>(SelfComposePb.class, stream);
+		for (int i = 0; i < 1000; i++) {
+			SelfComposePb pb = new SelfComposePb();
+			pb.mInt = i;
+			pb.mSelf = new SelfComposePb();
+			pb.mSelf.mInt = -i;
+			writer.write(pb);
+		}
+		writer.flush();
+
+		PBDelimitedReader<SelfComposePb> reader = new PBDelimitedReader<SelfComposePb>(SelfComposePb.class,
+				new ByteArrayInputStream(stream.toByteArray()));
+		int count = 0;
+		while (reader.hasNext()) {
+			SelfComposePb pb = reader.next();
+			Assert.assertEquals(count, pb.mInt);
+			Assert.assertEquals(-count, pb.mSelf.mInt);
+			count++;
+		}
+		Assert.assertEquals(1000, count);
+		Assert.assertNull(reader.read());
+
+		// 单个的读写, 只读掉自己的那部分
+		stream = new ByteArrayOutputStream();
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 7;
+		new PBMessage<SelfComposePb>(pb).writeDelimitedTo(stream);
+		pb.mInt = 8;
+		new PBMessage<SelfComposePb>(pb).writeDelimitedTo(stream);
+		ByteArrayInputStream input = new ByteArrayInputStream(stream.toByteArray());
+		PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+		Assert.assertTrue(msg.parseDelimitedFrom(input));
+		Assert.assertEquals(7, msg.getObject().mInt);
+		msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+		Assert.assertTrue(msg.parseDelimitedFrom(input));
+		Assert.assertEquals(8, msg.getObject().mInt);
+		Assert.assertFalse(msg.parseDelimitedFrom(input));
+
+		// 坏的长度前缀不能导致分配很大的数组
+		byte[][] prefixes = {
+				{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07},
+				{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f},
+		};
+		for (byte[] prefix : prefixes) {
+			try {
+				msg.parseDelimitedFrom(new ByteArrayInputStream(prefix));
+				fail();
+			} catch (InvalidProtocolBufferException e) {
+				// expected
+			}
+		}
+	}
+
+	public void testMessageLog() throws Exception {
+		File file = File.createTempFile("pbtest", ".log");
+		File index = new File(file.getPath() + PBMessageLog.INDEX_SUFFIX);
+		try {
+			PBMessageLog<SelfComposePb> log = new PBMessageLog<SelfComposePb>(file, SelfComposePb.class);
+			for (int i = 0; i < 1000; i++) {
+				SelfComposePb pb = new SelfComposePb();
+				pb.mInt = i;
+				pb.mSelf = new SelfComposePb();
+				pb.mSelf.mInt = -i;
+				Assert.assertEquals(i, log.append(pb));
+			}
+			Assert.assertEquals(1000, log.size());
+			for (int i = 999; i >= 0; i -= 7) {
+				SelfComposePb pb = log.get(i);
+				Assert.assertEquals(i, pb.mInt);
+				Assert.assertEquals(-i, pb.mSelf.mInt);
+			}
+			log.close();
+
+			// 索引丢了按数据文件重建, 写到一半的记录被截掉
+			Assert.assertTrue(index.delete());
+			long length = file.length();
+			RandomAccessFile raw = new RandomAccessFile(file, "rw");
+			raw.seek(length);
+			raw.write(new byte[] { 20, 8, 1 });
+			raw.close();
+			log = new PBMessageLog<SelfComposePb>(file, SelfComposePb.class);
+			Assert.assertEquals(1000, log.size());
+			Assert.assertEquals(length, file.length());
+			Assert.assertEquals(500, log.get(500).mInt);
+
+			SelfComposePb pb = new SelfComposePb();
+			pb.mInt = 1000;
+			Assert.assertEquals(1000, log.append(pb));
+			Assert.assertEquals(1000, log.get(1000).mInt);
+			Assert.assertEquals(999, log.get(999).mInt);
+			log.close();
+
+			log = new PBMessageLog<SelfComposePb>(file, SelfComposePb.class);
+			Assert.assertEquals(1001, log.size());
+			Assert.assertEquals(1000, log.get(1000).mInt);
+			Assert.assertEquals(0, log.get(0).mInt);
+			log.close();
+		} finally {
+			file.delete();
+			index.delete();
+		}
+	}
+
+	public void testMetrics() throws Exception {
+		PBMetricsRegistry registry = new PBMetricsRegistry();
+		PBMetrics.setListener(registry);
+		try {
+			SelfComposePb pb = new SelfComposePb();
+			pb.mInt = 1;
+			pb.mSelf = new SelfComposePb();
+			byte[] bytes = new PBMessage<SelfComposePb>(pb).toByteArray();
+			// 后面加一个不认识的字段 15
+			byte[] unknown = new byte[bytes.length + 2];
+			System.arraycopy(bytes, 0, unknown, 0, bytes.length);
+			unknown[bytes.length] = (byte) (15 << 3 | PBWireFormat.WIRETYPE_VARINT);
+			unknown[bytes.length + 1] = 1;
+			PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+			msg.parse(PBCodedInputStream.newInstance(unknown));
+			Assert.assertEquals(1, msg.getObject().mInt);
+
+			PBMetricsRegistry.Stats stats = registry.getStats(SelfComposePb.class);
+			if (!PBMetrics.ENABLED) {
+				Assert.assertNull(stats);
+				return;
+			}
+			Assert.assertEquals(1, stats.getEncodeCount());
+			Assert.assertEquals(bytes.length, stats.getEncodeBytes());
+			Assert.assertEquals(1, stats.getDecodeCount());
+			Assert.assertEquals(unknown.length, stats.getDecodeBytes());
+			Assert.assertEquals(1, stats.getUnknownFieldCount());
+			Assert.assertEquals(1, stats.getEncodeLatency().getTotalCount());
+			Assert.assertTrue(stats.getDecodeLatency().percentile(0.99) > 0);
+			Assert.assertTrue(registry.getSchemaHitCount() > 0);
+		} finally {
+			PBMetrics.setListener(null);
+		}
+	}
+
+	public void testCorruptInput() throws Exception {
+		SelfComposePb pb = new SelfComposePb();
+		pb.mInt = 1;
+		pb.mSelf = new SelfComposePb();
+		pb.mSelf.mInt = 300;
+		byte[] bytes = new PBMessage<SelfComposePb>(pb).toByteArray();
+		// 截掉最后一个字节, 子 message 的长度超出了输入
+		byte[] truncated = new byte[bytes.length - 1];
+		System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+		PBMessage<SelfComposePb> msg = new PBMessage<SelfComposePb>(SelfComposePb.class);
+		try {
+			msg.parse(PBCodedInputStream.newInstance(truncated));
+			fail();
+		} catch (InvalidProtocolBufferException e) {
+			Assert.assertEquals("SelfComposePb.mSelf", e.getFieldPath());
+			Assert.assertTrue(e.getMessage().endsWith("(at SelfComposePb.mSelf)"));
+			if (!Boolean.getBoolean("pb.stacktrace")) {
+				Assert.assertEquals(0, e.getStackTrace().length);
+			}
+		}
+	}
+
+	public void testParallel() throws Exception {
+		LazyPb pb = new LazyPb();
+		pb.mInt = 3;
+		for (int i = 0; i < 10000; i++) {
+			SelfComposePb item = new SelfComposePb();
+			item.mInt = i;
+			if (i % 3 == 0) {
+				item.mSelf = new SelfComposePb();
+				item.mSelf.mInt = -i;
+			}
+			pb.mList.add(item);
+		}
+		pb.mNames.add("a");
+		byte[] serial = new PBMessage<LazyPb>(pb).toByteArray();
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			PBMessage<LazyPb> msg = new PBMessage<LazyPb>(pb);
+			msg.setParallelExecutor(executor);
+			Assert.assertTrue(Arrays.equals(serial, msg.toByteArray()));
+			Assert.assertTrue(Arrays.equals(serial, msg.toByteString().toByteArray()));
+			ByteArrayOutputStream stream = new ByteArrayOutputStream();
+			msg.writeTo(stream);
+			Assert.assertTrue(Arrays.equals(serial, stream.toByteArray()));
+
+			// 延迟解析后没访问过的元素按原始字节写回
+			PBMessage<LazyPb> lazy = new PBMessage<LazyPb>(LazyPb.class);
+			lazy.setLazyParsing(true);
+			lazy.parse(PBCodedInputStream.newInstance(serial));
+			lazy.getObject().mList.get(5);
+			lazy.setParallelExecutor(executor);
+			Assert.assertTrue(Arrays.equals(serial, lazy.toByteArray()));
+
+			// 并行解析, 元素按原来的顺序
+			PBMessage<LazyPb> parsed = new PBMessage<LazyPb>(LazyPb.class);
+			parsed.setParallelExecutor(executor);
+			parsed.parse(PBCodedInputStream.newInstance(serial));
+			LazyPb result = parsed.getObject();
+			Assert.assertEquals(3, result.mInt);
+			Assert.assertEquals(10000, result.mList.size());
+			for (int i = 0; i < 10000; i++) {
+				Assert.assertEquals(i, result.mList.get(i).mInt);
+				Assert.assertEquals(i % 3 == 0 ? -i : 0, result.mList.get(i).mSelf == null ? 0 : result.mList.get(i).mSelf.mInt);
+			}
+			Assert.assertEquals(Arrays.asList("a"), result.mNames);
+			Assert.assertTrue(Arrays.equals(serial, new PBMessage<LazyPb>(result).toByteArray()));
+		} finally {
+			executor.shutdown();
+		}
+	}
 }
@@ -0,0 +1,24 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+
+@ClassDef
+public class PackedPb {
+    @FieldDef(tag = 1, type = PBWireFormat.FieldType.INT32, packed = true)
+    public List<Integer> mInts = new ArrayList<Integer>();
+
+    @FieldDef(tag = 2, type = PBWireFormat.FieldType.SINT64, packed = true)
+    public List<Long> mLongs = new ArrayList<Long>();
+
+    @FieldDef(tag = 3, type = PBWireFormat.FieldType.DOUBLE, packed = true)
+    public List<Double> mDoubles = new ArrayList<Double>();
+
+    @FieldDef(tag = 4, type = PBWireFormat.FieldType.INT32)
+    public List<Integer> mUnpacked = new ArrayList<Integer>();
+}
@@ -0,0 +1,20 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PolymDef;
+
+
+@ClassDef
+public class PolymPb {
+    @FieldDef(tag = 1)
+    @PolymDef(classes = {ShapePb.class, CirclePb.class}, tags = {1, 2})
+    public ShapePb mShape;
+
+    @FieldDef(tag = 2)
+    @PolymDef(classes = {ShapePb.class, CirclePb.class}, tags = {1, 2})
+    public List<ShapePb> mShapes = new ArrayList<ShapePb>();
+}
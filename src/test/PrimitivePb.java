@@ -0,0 +1,30 @@
+package test;
+
+import pb.ClassDef;
+import pb.FieldDef;
+import pb.PBWireFormat;
+
+
+@ClassDef
+public class PrimitivePb {
+    @FieldDef(tag = 1, type = PBWireFormat.FieldType.SINT32)
+    public int mSInt32;
+
+    @FieldDef(tag = 2, type = PBWireFormat.FieldType.SINT64)
+    public long mSInt64;
+
+    @FieldDef(tag = 3, type = PBWireFormat.FieldType.FIXED32)
+    public int mFixed32;
+
+    @FieldDef(tag = 4, type = PBWireFormat.FieldType.FIXED64)
+    public long mFixed64;
+
+    @FieldDef(tag = 5, type = PBWireFormat.FieldType.SFIXED32)
+    public int mSFixed32;
+
+    @FieldDef(tag = 6, type = PBWireFormat.FieldType.SFIXED64)
+    public long mSFixed64;
+
+    @FieldDef(tag = 7, type = PBWireFormat.FieldType.ENUM)
+    public int mEnum;
+}
@@ -0,0 +1,11 @@
+package test;
+
+import pb.ClassDef;
+import pb.FieldDef;
+
+
+@ClassDef
+public class ShapePb {
+    @FieldDef(tag = 1)
+    public int mId;
+}